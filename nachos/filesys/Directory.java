@@ -0,0 +1,170 @@
+package nachos.filesys;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import nachos.machine.*;
+
+/**
+ * A directory: a file of fixed-size entries, each holding a name and the
+ * sector of the header of the file or directory with that name. A free entry
+ * has sector 0, which is never a header. Free entries are reused before the
+ * directory grows. Names are stored in ISO-8859-1, one byte per character,
+ * whatever the platform's charset is.
+ */
+class Directory {
+    /**
+     * Allocate a new directory object for the directory with the specified
+     * header.
+     *
+     * @param	header	the directory's header.
+     */
+    Directory(FileHeader header) {
+	Lib.assertTrue(header.getType() == FileHeader.typeDirectory);
+
+	this.header = header;
+    }
+
+    /**
+     * Look up a name in this directory.
+     *
+     * @param	name	the name to look up.
+     * @return	the sector of the named file's header, or -1 if there is no
+     *		such file.
+     */
+    int find(String name) {
+	byte[] entries = readEntries();
+
+	int i = indexOf(entries, name);
+	if (i == -1)
+	    return -1;
+
+	return Lib.bytesToInt(entries, i*entrySize);
+    }
+
+    /**
+     * Add an entry to this directory.
+     *
+     * @param	name	the name of the entry, which must not already exist.
+     * @param	sector	the sector of the file's header.
+     * @return	<tt>true</tt> if successful, or <tt>false</tt> if the disk
+     *		was too full for the directory to grow.
+     */
+    boolean add(String name, int sector) {
+	byte[] entries = readEntries();
+	Lib.assertTrue(isValidName(name) && indexOf(entries, name) == -1);
+
+	int i;
+	for (i=0; i<entries.length/entrySize; i++) {
+	    if (Lib.bytesToInt(entries, i*entrySize) == 0)
+		break;
+	}
+
+	byte[] entry = new byte[entrySize];
+	Lib.bytesFromInt(entry, 0, sector);
+	byte[] nameBytes = name.getBytes(charset);
+	System.arraycopy(nameBytes, 0, entry, 4, nameBytes.length);
+
+	return header.write(i*entrySize, entry, 0, entrySize) == entrySize;
+    }
+
+    /**
+     * Remove an entry from this directory.
+     *
+     * @param	name	the name of the entry.
+     * @return	<tt>true</tt> if the entry existed.
+     */
+    boolean remove(String name) {
+	byte[] entries = readEntries();
+
+	int i = indexOf(entries, name);
+	if (i == -1)
+	    return false;
+
+	header.write(i*entrySize, new byte[entrySize], 0, entrySize);
+	return true;
+    }
+
+    /**
+     * Return the names of the entries in this directory.
+     *
+     * @return	the names, in the order of their entries.
+     */
+    String[] list() {
+	byte[] entries = readEntries();
+
+	ArrayList<String> names = new ArrayList<String>();
+	for (int i=0; i<entries.length/entrySize; i++) {
+	    if (Lib.bytesToInt(entries, i*entrySize) != 0)
+		names.add(entryName(entries, i));
+	}
+
+	return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Test whether this directory has no entries.
+     *
+     * @return	<tt>true</tt> if the directory is empty.
+     */
+    boolean isEmpty() {
+	return list().length == 0;
+    }
+
+    private byte[] readEntries() {
+	byte[] entries = new byte[header.getLength()];
+	Lib.assertTrue(header.read(0, entries, 0, entries.length) ==
+		       entries.length);
+
+	return entries;
+    }
+
+    private int indexOf(byte[] entries, String name) {
+	for (int i=0; i<entries.length/entrySize; i++) {
+	    if (Lib.bytesToInt(entries, i*entrySize) != 0 &&
+		entryName(entries, i).equals(name))
+		return i;
+	}
+
+	return -1;
+    }
+
+    private String entryName(byte[] entries, int i) {
+	int offset = i*entrySize + 4;
+	int length = 0;
+	while (length < maxNameLength && entries[offset+length] != 0)
+	    length++;
+
+	return new String(entries, offset, length, charset);
+    }
+
+    /**
+     * Test whether a name can be stored in a directory entry: it must not be
+     * empty, and must fit in <tt>maxNameLength</tt> bytes, with no null
+     * bytes and no characters outside ISO-8859-1.
+     *
+     * @param	name	the name to test.
+     * @return	<tt>true</tt> if the name is valid.
+     */
+    static boolean isValidName(String name) {
+	if (name.length() == 0 || name.length() > maxNameLength)
+	    return false;
+
+	for (int i=0; i<name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c == 0 || c > 0xFF)
+		return false;
+	}
+
+	return true;
+    }
+
+    /** The size of a directory entry. */
+    static final int entrySize = 32;
+    /** The longest name a directory entry can hold. */
+    static final int maxNameLength = entrySize - 4;
+
+    private static final Charset charset = Charset.forName("ISO-8859-1");
+
+    private FileHeader header;
+}
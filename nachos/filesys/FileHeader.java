@@ -0,0 +1,429 @@
+package nachos.filesys;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The header of a file or directory, like a UNIX inode. A header fills one
+ * sector, and holds the file's type and length and the numbers of the
+ * sectors that hold its data: the first few directly, the next
+ * sector-full through an indirect sector, and the rest through a double
+ * indirect sector, which holds the numbers of more indirect sectors.
+ *
+ * <p>
+ * Headers are kept in memory while they are in use. Changes to a header, and
+ * to its indirect sectors, are written back to the disk by
+ * <tt>writeBack()</tt>. Runs of a file's data that are consecutive on the
+ * disk are read and written with a single disk request.
+ */
+class FileHeader {
+    /**
+     * Allocate a new header, which must then be read with <tt>fetch()</tt>
+     * or initialized with <tt>create()</tt>.
+     *
+     * @param	disk	the disk that holds the file system.
+     * @param	freeMap	the file system's free map.
+     * @param	sector	the sector that holds the header.
+     */
+    FileHeader(SynchDisk disk, FreeMap freeMap, int sector) {
+	this.disk = disk;
+	this.freeMap = freeMap;
+	this.sector = sector;
+
+	sectorSize = disk.getSectorSize();
+	numDirect = sectorSize/4 - 4;
+	numPerSector = sectorSize/4;
+	Lib.assertTrue(numDirect > 0);
+
+	direct = new int[numDirect];
+    }
+
+    /**
+     * Initialize this as the header of a new, empty file.
+     *
+     * @param	type	<tt>typeFile</tt> or <tt>typeDirectory</tt>.
+     */
+    void create(int type) {
+	this.type = type;
+	length = 0;
+	dirty = true;
+    }
+
+    /**
+     * Read this header from the disk.
+     */
+    void fetch() {
+	byte[] buffer = new byte[sectorSize];
+	disk.readSector(sector, buffer, 0);
+
+	type = Lib.bytesToInt(buffer, 0);
+	length = Lib.bytesToInt(buffer, 4);
+	for (int i=0; i<numDirect; i++)
+	    direct[i] = Lib.bytesToInt(buffer, 8 + i*4);
+	indirect = Lib.bytesToInt(buffer, 8 + numDirect*4);
+	doubleIndirect = Lib.bytesToInt(buffer, 12 + numDirect*4);
+
+	dirty = false;
+    }
+
+    /**
+     * Write this header, and any of its indirect sectors that have changed,
+     * back to the disk.
+     */
+    void writeBack() {
+	byte[] buffer = new byte[sectorSize];
+
+	for (Iterator<Integer> i=dirtyTables.iterator(); i.hasNext(); ) {
+	    int tableSector = i.next();
+	    int[] table = tables.get(tableSector);
+	    for (int j=0; j<numPerSector; j++)
+		Lib.bytesFromInt(buffer, j*4, table[j]);
+	    disk.writeSector(tableSector, buffer, 0);
+	}
+	dirtyTables.clear();
+
+	if (!dirty)
+	    return;
+
+	Lib.bytesFromInt(buffer, 0, type);
+	Lib.bytesFromInt(buffer, 4, length);
+	for (int i=0; i<numDirect; i++)
+	    Lib.bytesFromInt(buffer, 8 + i*4, direct[i]);
+	Lib.bytesFromInt(buffer, 8 + numDirect*4, indirect);
+	Lib.bytesFromInt(buffer, 12 + numDirect*4, doubleIndirect);
+
+	disk.writeSector(sector, buffer, 0);
+	dirty = false;
+    }
+
+    /**
+     * Return the type of this file.
+     *
+     * @return	<tt>typeFile</tt> or <tt>typeDirectory</tt>.
+     */
+    int getType() {
+	return type;
+    }
+
+    /**
+     * Return the length of this file in bytes.
+     *
+     * @return	the length of the file.
+     */
+    int getLength() {
+	return length;
+    }
+
+    /**
+     * Read data from this file.
+     *
+     * @param	pos	the offset in the file of the first byte to read.
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	count	the number of bytes to read.
+     * @return	the actual number of bytes successfully read, which is less
+     *		than <tt>count</tt> only at the end of the file.
+     */
+    int read(int pos, byte[] buf, int offset, int count) {
+	if (pos >= length)
+	    return 0;
+
+	count = Math.min(count, length - pos);
+
+	int done = 0;
+	while (done < count) {
+	    int index = (pos+done) / sectorSize;
+	    int sectorOffset = (pos+done) % sectorSize;
+	    int amount = Math.min(sectorSize - sectorOffset, count - done);
+
+	    int first = getSector(index);
+
+	    if (amount == sectorSize) {
+		int run = runLength(index, (count-done) / sectorSize);
+		disk.readSectors(first, run, buf, offset+done);
+		done += run*sectorSize;
+	    }
+	    else {
+		byte[] buffer = new byte[sectorSize];
+		disk.readSector(first, buffer, 0);
+		System.arraycopy(buffer, sectorOffset, buf, offset+done, amount);
+		done += amount;
+	    }
+	}
+
+	return count;
+    }
+
+    /**
+     * Write data to this file, allocating sectors to it as it grows. If
+     * <tt>pos</tt> is past the end of the file, the gap reads back as zeros.
+     *
+     * @param	pos	the offset in the file of the first byte to write.
+     * @param	buf	the buffer to get the bytes from.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	count	the number of bytes to write.
+     * @return	the number of bytes written, which is less than
+     *		<tt>count</tt> only if the disk is full, or -1 if none could
+     *		be.
+     */
+    int write(int pos, byte[] buf, int offset, int count) {
+	if (count == 0)
+	    return 0;
+
+	while (pos > length) {
+	    byte[] zeros = new byte[sectorSize];
+	    int amount = Math.min(sectorSize - length%sectorSize, pos - length);
+	    if (write(length, zeros, 0, amount) != amount)
+		return -1;
+	}
+
+	int oldNumSectors = Lib.divRoundUp(length, sectorSize);
+	long end = Math.min((long) pos + count, (long) getMaxSectors()*sectorSize);
+	int numSectors = extend(Lib.divRoundUp((int) end, sectorSize));
+
+	count = (int) Math.min(end, (long) numSectors*sectorSize) - pos;
+	if (count <= 0)
+	    return -1;
+
+	int done = 0;
+	while (done < count) {
+	    int index = (pos+done) / sectorSize;
+	    int sectorOffset = (pos+done) % sectorSize;
+	    int amount = Math.min(sectorSize - sectorOffset, count - done);
+
+	    int first = getSector(index);
+
+	    if (amount == sectorSize) {
+		int run = runLength(index, (count-done) / sectorSize);
+		disk.writeSectors(first, run, buf, offset+done);
+		done += run*sectorSize;
+	    }
+	    else {
+		// new sectors start out zeroed, old ones must be read first
+		byte[] buffer = new byte[sectorSize];
+		if (index < oldNumSectors)
+		    disk.readSector(first, buffer, 0);
+		System.arraycopy(buf, offset+done, buffer, sectorOffset, amount);
+		disk.writeSector(first, buffer, 0);
+		done += amount;
+	    }
+	}
+
+	if (pos + count > length) {
+	    length = pos + count;
+	    dirty = true;
+	}
+
+	return count;
+    }
+
+    /**
+     * Free all the sectors of this file, leaving it empty. The header's own
+     * sector is not freed.
+     */
+    void truncate() {
+	int numSectors = Lib.divRoundUp(length, sectorSize);
+	for (int i=0; i<numSectors; i++)
+	    freeMap.free(getSector(i));
+
+	if (indirect != 0)
+	    freeMap.free(indirect);
+
+	if (doubleIndirect != 0) {
+	    int[] outer = getTable(doubleIndirect);
+	    for (int i=0; i<numPerSector; i++) {
+		if (outer[i] != 0)
+		    freeMap.free(outer[i]);
+	    }
+	    freeMap.free(doubleIndirect);
+	}
+
+	for (int i=0; i<numDirect; i++)
+	    direct[i] = 0;
+	indirect = doubleIndirect = 0;
+	tables.clear();
+	dirtyTables.clear();
+
+	length = 0;
+	dirty = true;
+    }
+
+    /**
+     * Return the largest number of sectors a file can have.
+     */
+    private int getMaxSectors() {
+	return numDirect + numPerSector + numPerSector*numPerSector;
+    }
+
+    /**
+     * Return the number of sectors, at most <tt>max</tt>, from the specified
+     * one onwards that are consecutive on the disk.
+     */
+    private int runLength(int index, int max) {
+	int first = getSector(index);
+
+	int run = 1;
+	while (run < max && getSector(index+run) == first+run)
+	    run++;
+
+	return run;
+    }
+
+    /**
+     * Allocate sectors to this file until it has the specified number.
+     *
+     * @return	the number of sectors the file has, which is less than asked
+     *		for if the disk is full.
+     */
+    private int extend(int numSectors) {
+	int index = Lib.divRoundUp(length, sectorSize);
+
+	for (; index<numSectors; index++) {
+	    int goal = (index == 0) ? sector+1 : getSector(index-1)+1;
+	    int newSector = freeMap.allocate(goal);
+	    if (newSector == -1)
+		break;
+
+	    if (!setSector(index, newSector)) {
+		freeMap.free(newSector);
+		break;
+	    }
+	}
+
+	return index;
+    }
+
+    /**
+     * Return the disk sector that holds the specified sector of the file.
+     */
+    private int getSector(int index) {
+	if (index < numDirect)
+	    return direct[index];
+	index -= numDirect;
+
+	if (index < numPerSector)
+	    return getTable(indirect)[index];
+	index -= numPerSector;
+
+	int[] outer = getTable(doubleIndirect);
+	return getTable(outer[index/numPerSector])[index%numPerSector];
+    }
+
+    /**
+     * Set the disk sector that holds the specified sector of the file,
+     * allocating indirect sectors as needed.
+     *
+     * @return	<tt>false</tt> if an indirect sector was needed but the disk
+     *		is full.
+     */
+    private boolean setSector(int index, int diskSector) {
+	if (index < numDirect) {
+	    direct[index] = diskSector;
+	    dirty = true;
+	    return true;
+	}
+	index -= numDirect;
+
+	if (index < numPerSector) {
+	    if (indirect == 0) {
+		indirect = newTable(diskSector);
+		if (indirect == 0)
+		    return false;
+		dirty = true;
+	    }
+
+	    setEntry(indirect, index, diskSector);
+	    return true;
+	}
+	index -= numPerSector;
+
+	if (doubleIndirect == 0) {
+	    doubleIndirect = newTable(diskSector);
+	    if (doubleIndirect == 0)
+		return false;
+	    dirty = true;
+	}
+
+	int[] outer = getTable(doubleIndirect);
+	int tableSector = outer[index/numPerSector];
+	if (tableSector == 0) {
+	    tableSector = newTable(diskSector);
+	    if (tableSector == 0)
+		return false;
+	    setEntry(doubleIndirect, index/numPerSector, tableSector);
+	}
+
+	setEntry(tableSector, index%numPerSector, diskSector);
+	return true;
+    }
+
+    /**
+     * Allocate a new, empty indirect sector near the specified sector.
+     *
+     * @return	the new sector, or 0 if the disk is full.
+     */
+    private int newTable(int goal) {
+	int tableSector = freeMap.allocate(goal);
+	if (tableSector == -1)
+	    return 0;
+
+	tables.put(tableSector, new int[numPerSector]);
+	dirtyTables.add(tableSector);
+	return tableSector;
+    }
+
+    private int[] getTable(int tableSector) {
+	Lib.assertTrue(tableSector != 0);
+
+	int[] table = tables.get(tableSector);
+	if (table == null) {
+	    byte[] buffer = new byte[sectorSize];
+	    disk.readSector(tableSector, buffer, 0);
+
+	    table = new int[numPerSector];
+	    for (int i=0; i<numPerSector; i++)
+		table[i] = Lib.bytesToInt(buffer, i*4);
+
+	    tables.put(tableSector, table);
+	}
+
+	return table;
+    }
+
+    private void setEntry(int tableSector, int i, int value) {
+	getTable(tableSector)[i] = value;
+	dirtyTables.add(tableSector);
+    }
+
+    /** The type of a regular file. */
+    static final int typeFile = 1;
+    /** The type of a directory. */
+    static final int typeDirectory = 2;
+
+    /** The sector that holds this header. */
+    final int sector;
+    /** Held while the file's data is read or written. */
+    final Lock lock = new Lock();
+    /** The number of open instances of the file. */
+    int openCount = 0;
+    /** Set if the file was removed while open, to be freed when closed. */
+    boolean removed = false;
+
+    private SynchDisk disk;
+    private FreeMap freeMap;
+    private int sectorSize, numDirect, numPerSector;
+
+    private int type;
+    private int length;
+    private int[] direct;
+    private int indirect = 0, doubleIndirect = 0;
+    private boolean dirty = false;
+
+    /** The indirect sectors that have been read, by sector number. */
+    private HashMap<Integer, int[]> tables = new HashMap<Integer, int[]>();
+    private HashSet<Integer> dirtyTables = new HashSet<Integer>();
+}
@@ -0,0 +1,182 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The free-sector bitmap of a Nachos file system: one bit for every sector of
+ * the disk, set if the sector is in use. The bitmap is kept in memory, and
+ * stored in a run of sectors on the disk, which are written back when they
+ * change.
+ */
+class FreeMap {
+    /**
+     * Allocate a new free map.
+     *
+     * @param	disk		the disk that holds the file system.
+     * @param	firstSector	the first of the sectors the map is stored in.
+     */
+    FreeMap(SynchDisk disk, int firstSector) {
+	this.disk = disk;
+	this.firstSector = firstSector;
+
+	numSectors = disk.getNumSectors();
+	numMapSectors = numMapSectors(disk);
+
+	map = new byte[numMapSectors*disk.getSectorSize()];
+	dirty = new boolean[numMapSectors];
+    }
+
+    /**
+     * Return the number of sectors the free map of a disk needs.
+     *
+     * @param	disk	the disk.
+     * @return	the number of sectors needed to store the map.
+     */
+    static int numMapSectors(SynchDisk disk) {
+	return Lib.divRoundUp(disk.getNumSectors(), disk.getSectorSize()*8);
+    }
+
+    /**
+     * Mark every sector free, as on a newly formatted disk.
+     */
+    void clear() {
+	lock.acquire();
+
+	for (int i=0; i<map.length; i++)
+	    map[i] = 0;
+	for (int i=0; i<numMapSectors; i++)
+	    dirty[i] = true;
+	numFree = numSectors;
+
+	lock.release();
+    }
+
+    /**
+     * Read the map from the disk.
+     */
+    void fetch() {
+	lock.acquire();
+
+	disk.readSectors(firstSector, numMapSectors, map, 0);
+
+	numFree = 0;
+	for (int sector=0; sector<numSectors; sector++) {
+	    if (!isAllocated(sector))
+		numFree++;
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Write the parts of the map that have changed back to the disk.
+     */
+    void writeBack() {
+	lock.acquire();
+
+	int sectorSize = disk.getSectorSize();
+	for (int i=0; i<numMapSectors; i++) {
+	    if (dirty[i]) {
+		dirty[i] = false;
+		disk.writeSector(firstSector+i, map, i*sectorSize);
+	    }
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Allocate a free sector, as close as possible after the specified one,
+     * so that the sectors of a file tend to be consecutive on the disk.
+     *
+     * @param	goal	the sector to look for a free sector from.
+     * @return	the sector allocated, or -1 if the disk is full.
+     */
+    int allocate(int goal) {
+	lock.acquire();
+
+	int sector = -1;
+	if (numFree > 0) {
+	    if (goal < 0 || goal >= numSectors)
+		goal = 0;
+
+	    for (int i=0; i<numSectors; i++) {
+		int candidate = (goal+i) % numSectors;
+		if (!isAllocated(candidate)) {
+		    sector = candidate;
+		    break;
+		}
+	    }
+
+	    Lib.assertTrue(sector != -1);
+	    set(sector, true);
+	}
+
+	lock.release();
+	return sector;
+    }
+
+    /**
+     * Mark a sector in use.
+     *
+     * @param	sector	the sector.
+     */
+    void mark(int sector) {
+	lock.acquire();
+
+	Lib.assertTrue(!isAllocated(sector));
+	set(sector, true);
+
+	lock.release();
+    }
+
+    /**
+     * Mark a sector free.
+     *
+     * @param	sector	the sector.
+     */
+    void free(int sector) {
+	lock.acquire();
+
+	Lib.assertTrue(isAllocated(sector));
+	set(sector, false);
+
+	lock.release();
+    }
+
+    /**
+     * Return the number of free sectors.
+     *
+     * @return	the number of free sectors.
+     */
+    int getNumFree() {
+	return numFree;
+    }
+
+    private boolean isAllocated(int sector) {
+	return (map[sector>>3] & (1 << (sector&7))) != 0;
+    }
+
+    private void set(int sector, boolean allocated) {
+	if (allocated) {
+	    map[sector>>3] |= (1 << (sector&7));
+	    numFree--;
+	}
+	else {
+	    map[sector>>3] &= ~(1 << (sector&7));
+	    numFree++;
+	}
+
+	dirty[(sector>>3) / disk.getSectorSize()] = true;
+    }
+
+    private SynchDisk disk;
+    private int firstSector, numMapSectors, numSectors;
+
+    private byte[] map;
+    private boolean[] dirty;
+    private int numFree;
+
+    private Lock lock = new Lock();
+}
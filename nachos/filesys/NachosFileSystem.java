@@ -0,0 +1,626 @@
+package nachos.filesys;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.StringTokenizer;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A file system stored on the machine's simulated disk. Select it by setting
+ * <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.filesys.NachosFileSystem</tt>, with <tt>Machine.disk</tt> set.
+ *
+ * <p>
+ * The disk is laid out as follows. Sector 0 describes the file system; it is
+ * followed by the free map, which has a bit for every sector, and then by
+ * the header of the root directory. Every file and directory has a
+ * <tt>FileHeader</tt> in a sector of its own, which points to the sectors
+ * holding its data. Sectors are allocated near the ones before them, so
+ * files tend to be consecutive on the disk, and can be read and written with
+ * few requests.
+ *
+ * <p>
+ * File names are paths of directory names separated by <tt>/</tt>, starting
+ * at the root directory. Directories are made with
+ * <tt>createDirectory()</tt>, and can only be removed when they are empty. A
+ * file that is removed while it is open stays readable until its last open
+ * instance is closed.
+ *
+ * <p>
+ * The disk is formatted the first time it is used, or every time if
+ * <tt>NachosFileSystem.format</tt> is set. Files from the stub file system
+ * can be copied into the root directory, if they are not there already, by
+ * listing them, separated by commas, in <tt>NachosFileSystem.copyIn</tt>, so
+ * that programs can be run from the disk.
+ */
+public class NachosFileSystem implements FileSystem {
+    /**
+     * Allocate a new Nachos file system. The disk is not read until the file
+     * system is first used.
+     */
+    public NachosFileSystem() {
+	Lib.assertTrue(Machine.disk() != null, "no disk for the file system");
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+	mount();
+
+	FileHeader header = openHeader(name, truncate);
+	if (header != null)
+	    header.openCount++;
+
+	lock.release();
+
+	if (header == null)
+	    return null;
+
+	return new NachosOpenFile(name, header);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+	mount();
+
+	boolean removed = false;
+
+	String[] path = split(name);
+	FileHeader parent = findParent(path);
+	if (parent != null) {
+	    Directory directory = new Directory(parent);
+
+	    int sector = directory.find(path[path.length-1]);
+	    FileHeader header = (sector == -1) ? null : getHeader(sector);
+
+	    if (header != null &&
+		(header.getType() == FileHeader.typeFile ||
+		 new Directory(header).isEmpty())) {
+		directory.remove(path[path.length-1]);
+		parent.writeBack();
+
+		if (header.openCount > 0)
+		    header.removed = true;
+		else
+		    delete(header);
+
+		removed = true;
+	    }
+	}
+
+	freeMap.writeBack();
+	lock.release();
+
+	return removed;
+    }
+
+    /**
+     * Create a directory.
+     *
+     * @param	name	the path of the new directory.
+     * @return	<tt>true</tt> if successful, or <tt>false</tt> if the path
+     *		already exists or the disk is full.
+     */
+    public boolean createDirectory(String name) {
+	lock.acquire();
+	mount();
+
+	String[] path = split(name);
+	FileHeader parent = findParent(path);
+	FileHeader header = null;
+	if (parent != null &&
+	    new Directory(parent).find(path[path.length-1]) == -1)
+	    header = create(parent, path[path.length-1],
+			    FileHeader.typeDirectory);
+
+	lock.release();
+
+	return header != null;
+    }
+
+    /**
+     * Return the names of the entries in a directory.
+     *
+     * @param	name	the path of the directory, or <tt>""</tt> for the root.
+     * @return	the names of its entries, or <tt>null</tt> if the path is not
+     *		a directory.
+     */
+    public String[] list(String name) {
+	lock.acquire();
+	mount();
+
+	FileHeader header = root;
+	if (name.length() > 0) {
+	    String[] path = split(name);
+	    FileHeader parent = findParent(path);
+	    header = null;
+	    if (parent != null) {
+		int sector = new Directory(parent).find(path[path.length-1]);
+		if (sector != -1)
+		    header = getHeader(sector);
+	    }
+	}
+
+	String[] names = null;
+	if (header != null && header.getType() == FileHeader.typeDirectory)
+	    names = new Directory(header).list();
+
+	lock.release();
+
+	return names;
+    }
+
+    /**
+     * Write every change to the headers of open files and to the free map
+     * back to the disk.
+     */
+    public void flush() {
+	lock.acquire();
+
+	if (mounted) {
+	    for (Iterator<FileHeader> i=headers.values().iterator();
+		 i.hasNext(); ) {
+		FileHeader header = i.next();
+		header.lock.acquire();
+		header.writeBack();
+		header.lock.release();
+	    }
+
+	    freeMap.writeBack();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Read the file system from the disk the first time it is used,
+     * formatting the disk if it does not hold one.
+     */
+    private void mount() {
+	if (mounted)
+	    return;
+
+	mounted = true;
+
+	disk = SynchDisk.getSynchDisk();
+
+	int sectorSize = disk.getSectorSize();
+	byte[] buffer = new byte[sectorSize];
+	disk.readSector(0, buffer, 0);
+
+	freeMap = new FreeMap(disk, 1);
+	int rootSector = 1 + FreeMap.numMapSectors(disk);
+
+	if (Lib.bytesToInt(buffer, 0) != magic ||
+	    Lib.bytesToInt(buffer, 4) != disk.getNumSectors() ||
+	    Lib.bytesToInt(buffer, 8) != sectorSize ||
+	    (!remount && Config.getBoolean("NachosFileSystem.format", false))) {
+	    Lib.debug(dbgFileSystem, "formatting the disk");
+
+	    freeMap.clear();
+	    for (int sector=0; sector<=rootSector; sector++)
+		freeMap.mark(sector);
+
+	    root = new FileHeader(disk, freeMap, rootSector);
+	    root.create(FileHeader.typeDirectory);
+	    root.writeBack();
+	    freeMap.writeBack();
+
+	    buffer = new byte[sectorSize];
+	    Lib.bytesFromInt(buffer, 0, magic);
+	    Lib.bytesFromInt(buffer, 4, disk.getNumSectors());
+	    Lib.bytesFromInt(buffer, 8, sectorSize);
+	    disk.writeSector(0, buffer, 0);
+	}
+	else {
+	    freeMap.fetch();
+
+	    root = new FileHeader(disk, freeMap, rootSector);
+	    root.fetch();
+	}
+
+	headers.put(rootSector, root);
+
+	Lib.debug(dbgFileSystem, "mounted, " + freeMap.getNumFree() +
+		  " of " + disk.getNumSectors() + " sectors free");
+
+	if (!remount)
+	    copyIn();
+    }
+
+    /**
+     * Copy the files listed in <tt>NachosFileSystem.copyIn</tt> from the stub
+     * file system to the root directory, unless they are already there.
+     */
+    private void copyIn() {
+	String names = Config.getString("NachosFileSystem.copyIn", null);
+	if (names == null || Machine.stubFileSystem() == null)
+	    return;
+
+	StringTokenizer tokenizer = new StringTokenizer(names, ", \t");
+	while (tokenizer.hasMoreTokens()) {
+	    String name = tokenizer.nextToken();
+	    if (new Directory(root).find(name) != -1)
+		continue;
+
+	    OpenFile source = Machine.stubFileSystem().open(name, false);
+	    if (source == null)
+		continue;
+
+	    FileHeader header = create(root, name, FileHeader.typeFile);
+	    if (header != null) {
+		byte[] data = Lib.loadFile(source);
+		if (data != null)
+		    header.write(0, data, 0, data.length);
+		header.writeBack();
+		headers.remove(header.sector);
+
+		Lib.debug(dbgFileSystem, "copied in " + name + ", " +
+			  header.getLength() + " bytes");
+	    }
+
+	    source.close();
+	}
+
+	freeMap.writeBack();
+    }
+
+    /**
+     * Return the header of an existing file to open, or of a new one.
+     */
+    private FileHeader openHeader(String name, boolean truncate) {
+	String[] path = split(name);
+	FileHeader parent = findParent(path);
+	if (parent == null)
+	    return null;
+
+	String last = path[path.length-1];
+	int sector = new Directory(parent).find(last);
+
+	if (sector == -1) {
+	    if (!truncate)
+		return null;
+
+	    return create(parent, last, FileHeader.typeFile);
+	}
+
+	FileHeader header = getHeader(sector);
+	if (header.getType() != FileHeader.typeFile)
+	    return null;
+
+	// every open instance must share the one header
+	headers.put(sector, header);
+
+	if (truncate && header.getLength() > 0) {
+	    header.lock.acquire();
+	    header.truncate();
+	    header.writeBack();
+	    header.lock.release();
+
+	    freeMap.writeBack();
+	}
+
+	return header;
+    }
+
+    /**
+     * Create a new, empty file or directory, and add it to a directory.
+     *
+     * @return	its header, or <tt>null</tt> if the disk is full.
+     */
+    private FileHeader create(FileHeader parent, String name, int type) {
+	int sector = freeMap.allocate(parent.sector+1);
+	if (sector == -1)
+	    return null;
+
+	FileHeader header = new FileHeader(disk, freeMap, sector);
+	header.create(type);
+
+	if (!new Directory(parent).add(name, sector)) {
+	    freeMap.free(sector);
+	    freeMap.writeBack();
+	    return null;
+	}
+
+	header.writeBack();
+	parent.writeBack();
+	freeMap.writeBack();
+
+	headers.put(sector, header);
+	return header;
+    }
+
+    /**
+     * Free a file's sectors and its header.
+     */
+    private void delete(FileHeader header) {
+	Lib.debug(dbgFileSystem, "deleting the file at sector " +
+		  header.sector);
+
+	header.truncate();
+	freeMap.free(header.sector);
+	headers.remove(header.sector);
+    }
+
+    /**
+     * Return the header in the specified sector, reading it from the disk if
+     * it is not in memory.
+     */
+    private FileHeader getHeader(int sector) {
+	FileHeader header = headers.get(sector);
+	if (header == null) {
+	    header = new FileHeader(disk, freeMap, sector);
+	    header.fetch();
+
+	    // directories stay in memory; files only while they are open
+	    if (header.getType() == FileHeader.typeDirectory)
+		headers.put(sector, header);
+	}
+
+	return header;
+    }
+
+    /**
+     * Return the header of the directory that would hold the last name in a
+     * path, or <tt>null</tt> if the path is not valid.
+     */
+    private FileHeader findParent(String[] path) {
+	if (path == null)
+	    return null;
+
+	FileHeader directory = root;
+	for (int i=0; i<path.length-1; i++) {
+	    int sector = new Directory(directory).find(path[i]);
+	    if (sector == -1)
+		return null;
+
+	    directory = getHeader(sector);
+	    if (directory.getType() != FileHeader.typeDirectory)
+		return null;
+	}
+
+	return directory;
+    }
+
+    /**
+     * Split a path into its names, or return <tt>null</tt> if it is not
+     * valid.
+     */
+    private static String[] split(String name) {
+	if (name.startsWith("/"))
+	    name = name.substring(1);
+
+	String[] path = name.split("/", -1);
+	for (int i=0; i<path.length; i++) {
+	    if (!Directory.isValidName(path[i]))
+		return null;
+	}
+
+	return path;
+    }
+
+    private void close(FileHeader header) {
+	lock.acquire();
+
+	Lib.assertTrue(header.openCount > 0);
+	if (--header.openCount == 0) {
+	    if (header.removed) {
+		delete(header);
+	    }
+	    else {
+		header.writeBack();
+		headers.remove(header.sector);
+	    }
+
+	    freeMap.writeBack();
+	}
+
+	lock.release();
+    }
+
+    private class NachosOpenFile extends OpenFileWithPosition {
+	NachosOpenFile(String name, FileHeader header) {
+	    super(NachosFileSystem.this, name);
+
+	    this.header = header;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (header == null || pos < 0 || length < 0 ||
+		offset < 0 || offset+length > buf.length)
+		return -1;
+
+	    header.lock.acquire();
+	    int amount = header.read(pos, buf, offset, length);
+	    header.lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (header == null || pos < 0 || length < 0 ||
+		offset < 0 || offset+length > buf.length)
+		return -1;
+
+	    header.lock.acquire();
+	    int amount = header.write(pos, buf, offset, length);
+	    header.lock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    if (header == null)
+		return -1;
+
+	    return header.getLength();
+	}
+
+	public void close() {
+	    if (header != null) {
+		NachosFileSystem.this.close(header);
+		header = null;
+	    }
+	}
+
+	private FileHeader header;
+    }
+
+    /**
+     * Test the file system on the machine's disk, in a directory of its own
+     * that is removed again. The kernel's file system is used if it is a
+     * <tt>NachosFileSystem</tt>, since two of them must not share a disk.
+     */
+    public static void selfTest() {
+	FileSystem kernelFileSystem = ThreadedKernel.fileSystem;
+	if (kernelFileSystem instanceof CachedFileSystem)
+	    kernelFileSystem =
+		((CachedFileSystem) kernelFileSystem).getFileSystem();
+
+	NachosFileSystem fs;
+	if (kernelFileSystem instanceof NachosFileSystem)
+	    fs = (NachosFileSystem) kernelFileSystem;
+	else
+	    fs = new NachosFileSystem();
+
+	String dir = "selftest";
+	fs.list("");		// mount it
+	int sectorSize = fs.disk.getSectorSize();
+
+	// directories never shrink, so make room in the root for the test
+	// directory before counting the free sectors
+	if (fs.list(dir) == null)
+	    Lib.assertTrue(fs.createDirectory(dir));
+	removeTree(fs, dir);
+	int numFree = fs.freeMap.getNumFree();
+
+	Lib.assertTrue(fs.createDirectory(dir));
+	Lib.assertTrue(!fs.createDirectory(dir));
+
+	// a file that needs the double indirect table, written in pieces
+	// that do not line up with the sectors
+	int numDirect = sectorSize/4 - 4, numPerSector = sectorSize/4;
+	byte[] data = new byte[(numDirect+numPerSector+3)*sectorSize + 17];
+	for (int i=0; i<data.length; i++)
+	    data[i] = (byte) (i*7 + i/251);
+
+	OpenFile file = fs.open(dir + "/big", true);
+	Lib.assertTrue(file != null);
+	for (int pos=0; pos<data.length; pos+=100) {
+	    int length = Math.min(100, data.length-pos);
+	    Lib.assertTrue(file.write(pos, data, pos, length) == length);
+	}
+	Lib.assertTrue(file.length() == data.length);
+	checkContents(file, data);
+	file.close();
+
+	// writing past the end leaves a hole that reads back as zeros
+	file = fs.open(dir + "/hole", true);
+	int holeEnd = 3*sectorSize + 5;
+	Lib.assertTrue(file.write(holeEnd, data, 0, 10) == 10);
+	byte[] hole = new byte[holeEnd+10];
+	System.arraycopy(data, 0, hole, holeEnd, 10);
+	checkContents(file, hole);
+	file.close();
+
+	// a removed file stays readable, and keeps its sectors, until the
+	// last open instance is closed
+	int beforeOpen = fs.freeMap.getNumFree();
+	file = fs.open(dir + "/open", true);
+	OpenFile other = fs.open(dir + "/open", false);
+	Lib.assertTrue(file.write(0, data, 0, 4*sectorSize) == 4*sectorSize);
+	int whileOpen = fs.freeMap.getNumFree();
+	Lib.assertTrue(fs.remove(dir + "/open"));
+	Lib.assertTrue(!fs.remove(dir + "/open"));
+	Lib.assertTrue(fs.open(dir + "/open", false) == null);
+	file.close();
+	Lib.assertTrue(fs.freeMap.getNumFree() == whileOpen);
+	checkContents(other, Arrays.copyOf(data, 4*sectorSize));
+	other.close();
+	Lib.assertTrue(fs.freeMap.getNumFree() == beforeOpen);
+
+	// directories
+	Lib.assertTrue(fs.createDirectory(dir + "/sub"));
+	Lib.assertTrue(fs.open(dir + "/sub", false) == null);
+	file = fs.open(dir + "/sub/file", true);
+	Lib.assertTrue(file != null);
+	file.close();
+	Lib.assertTrue(!fs.remove(dir + "/sub"));
+	checkNames(fs.list(dir + "/sub"), new String[] { "file" });
+	checkNames(fs.list(dir), new String[] { "big", "hole", "sub" });
+	Lib.assertTrue(fs.list(dir + "/big") == null);
+	Lib.assertTrue(fs.open(dir + "/none/file", true) == null);
+	Lib.assertTrue(fs.open(dir + "/\u0100", true) == null);
+	char[] tooLong = new char[Directory.maxNameLength+1];
+	Arrays.fill(tooLong, 'x');
+	Lib.assertTrue(fs.open(dir + "/" + new String(tooLong), true) == null);
+	Lib.assertTrue(fs.remove(dir + "/sub/file"));
+	Lib.assertTrue(fs.remove(dir + "/sub"));
+	Lib.assertTrue(fs.list(dir + "/sub") == null);
+
+	// a second file system reads the same free map and files from the disk
+	fs.flush();
+	NachosFileSystem image = new NachosFileSystem();
+	image.remount = true;
+	checkNames(image.list(dir), new String[] { "big", "hole" });
+	Lib.assertTrue(image.freeMap.getNumFree() == fs.freeMap.getNumFree());
+	Lib.assertTrue(image.root.sector == fs.root.sector);
+	file = image.open(dir + "/big", false);
+	checkContents(file, data);
+	file.close();
+	file = image.open(dir + "/hole", false);
+	checkContents(file, hole);
+	file.close();
+
+	removeTree(fs, dir);
+	Lib.assertTrue(fs.freeMap.getNumFree() == numFree);
+	Lib.assertTrue(fs.list(dir) == null);
+	fs.flush();
+    }
+
+    private static void removeTree(NachosFileSystem fs, String name) {
+	String[] names = fs.list(name);
+	if (names != null) {
+	    for (int i=0; i<names.length; i++)
+		removeTree(fs, name + "/" + names[i]);
+	}
+
+	Lib.assertTrue(fs.remove(name));
+    }
+
+    private static void checkContents(OpenFile file, byte[] data) {
+	Lib.assertTrue(file.length() == data.length);
+
+	byte[] buffer = new byte[data.length+1];
+	Lib.assertTrue(file.read(0, buffer, 0, buffer.length) == data.length);
+	Lib.assertTrue(Arrays.equals(Arrays.copyOf(buffer, data.length), data));
+    }
+
+    private static void checkNames(String[] names, String[] expected) {
+	Lib.assertTrue(names != null);
+
+	names = names.clone();
+	Arrays.sort(names);
+	Lib.assertTrue(Arrays.equals(names, expected));
+    }
+
+    private SynchDisk disk;
+    private FreeMap freeMap;
+    private FileHeader root;
+    private boolean mounted = false;
+    /** Set to read what is on the disk, without formatting or copying in. */
+    private boolean remount = false;
+
+    /** Held while the directories or the table of headers change. */
+    private Lock lock = new Lock();
+    /** The headers in memory, by sector. */
+    private HashMap<Integer, FileHeader> headers =
+	new HashMap<Integer, FileHeader>();
+
+    /** Identifies a disk formatted with this file system. */
+    private static final int magic = 0x4E465330;
+
+    private static final char dbgFileSystem = 'F';
+}
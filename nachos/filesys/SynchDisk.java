@@ -0,0 +1,424 @@
+package nachos.filesys;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Provides a simple, synchronized interface to the machine's disk. Every
+ * request blocks the calling thread until the disk has completed it.
+ *
+ * <p>
+ * Requests from different threads are queued, and sent to the disk one at a
+ * time, in the order chosen by <tt>SynchDisk.scheduler</tt>. With
+ * <tt>fifo</tt>, they are sent in the order they arrive. With <tt>look</tt>,
+ * the head sweeps up the disk serving the requests it passes, and turns
+ * back down once there are none left ahead of it, like an elevator. With
+ * <tt>clook</tt>, the default, the head only sweeps up, then returns to the
+ * lowest request and sweeps up again, so no request waits longer than one
+ * sweep. Requests are ordered by sector, which
+ * orders them by track, and by position within a track.
+ *
+ * <p>
+ * The request sent to the disk is merged with queued requests in the same
+ * direction for the sectors just before and after it, up to
+ * <tt>SynchDisk.maxTransfer</tt> sectors in all, so that a single transfer
+ * serves them all. When the transfer completes, the disk interrupts, and
+ * every request it served is woken.
+ */
+public class SynchDisk {
+    /**
+     * Return the <tt>SynchDisk</tt> for the machine's disk, allocating it the
+     * first time. The disk has a single interrupt handler, so everything
+     * that uses the disk must share this one.
+     *
+     * @return	the machine's <tt>SynchDisk</tt>.
+     */
+    public static SynchDisk getSynchDisk() {
+	if (synchDisk == null) {
+	    Lib.assertTrue(Machine.disk() != null, "no disk");
+	    synchDisk = new SynchDisk(Machine.disk());
+	}
+
+	return synchDisk;
+    }
+
+    private SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	policy = policyFor(Config.getString("SynchDisk.scheduler", "clook"));
+	maxTransfer = Config.getInteger("SynchDisk.maxTransfer",
+					disk.getSectorsPerTrack());
+	Lib.assertTrue(maxTransfer > 0);
+
+	disk.setInterruptHandler(new Runnable() {
+	    public void run() { requestDone(); }
+	});
+    }
+
+    private static int policyFor(String scheduler) {
+	if (scheduler.equals("fifo"))
+	    return policyFifo;
+	else if (scheduler.equals("look"))
+	    return policyLook;
+	else if (scheduler.equals("clook"))
+	    return policyCLook;
+
+	Lib.assertNotReached("unknown disk scheduler " + scheduler);
+	return -1;
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return disk.getSectorSize();
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    /**
+     * Read a sector into an array. Blocks until the data is in the array.
+     *
+     * @param	sector	the sector to read.
+     * @param	data	the array to read into.
+     * @param	offset	the offset in the array of the first byte.
+     */
+    public void readSector(int sector, byte[] data, int offset) {
+	readSectors(sector, 1, data, offset);
+    }
+
+    /**
+     * Read consecutive sectors into an array with a single request. Blocks
+     * until the data is in the array.
+     *
+     * @param	sector		the first sector to read.
+     * @param	numSectors	the number of sectors to read.
+     * @param	data		the array to read into.
+     * @param	offset		the offset in the array of the first byte.
+     */
+    public void readSectors(int sector, int numSectors, byte[] data,
+			    int offset) {
+	request(new Request(false, sector, numSectors, data, offset));
+    }
+
+    /**
+     * Write a sector from an array. Blocks until the data has been written.
+     *
+     * @param	sector	the sector to write.
+     * @param	data	the array to write from.
+     * @param	offset	the offset in the array of the first byte.
+     */
+    public void writeSector(int sector, byte[] data, int offset) {
+	writeSectors(sector, 1, data, offset);
+    }
+
+    /**
+     * Write consecutive sectors from an array with a single request. Blocks
+     * until the data has been written.
+     *
+     * @param	sector		the first sector to write.
+     * @param	numSectors	the number of sectors to write.
+     * @param	data		the array to write from.
+     * @param	offset		the offset in the array of the first byte.
+     */
+    public void writeSectors(int sector, int numSectors, byte[] data,
+			     int offset) {
+	request(new Request(true, sector, numSectors, data, offset));
+    }
+
+    private void request(Request request) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	queue.add(request);
+	if (transfer == null)
+	    startTransfer();
+
+	Machine.interrupt().restore(intStatus);
+
+	request.done.P();
+    }
+
+    /**
+     * Send the next request, merged with any it can be, to the disk.
+     */
+    private void startTransfer() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Request first = pickNext();
+	if (first == null) {
+	    transfer = null;
+	    return;
+	}
+
+	queue.remove(first);
+
+	transfer = new LinkedList<Request>();
+	transfer.add(first);
+	int start = first.sector;
+	int end = first.sector + first.numSectors;
+
+	// merge the requests that continue the transfer, on either side
+	while (true) {
+	    Request next = null;
+	    for (Iterator<Request> i=queue.iterator(); i.hasNext(); ) {
+		Request request = i.next();
+		if (request.write == first.write &&
+		    end - start + request.numSectors <= maxTransfer &&
+		    (request.sector == end ||
+		     request.sector + request.numSectors == start)) {
+		    next = request;
+		    break;
+		}
+	    }
+
+	    if (next == null)
+		break;
+
+	    queue.remove(next);
+	    if (next.sector == end) {
+		transfer.addLast(next);
+		end += next.numSectors;
+	    }
+	    else {
+		transfer.addFirst(next);
+		start = next.sector;
+	    }
+	}
+
+	// the head leaves the transfer at the end it was sweeping toward
+	position = sweepingUp ? end : start;
+
+	if (transfer.size() == 1) {
+	    buffer = null;
+	    if (first.write)
+		disk.writeRequest(first.sector, first.numSectors, first.data,
+				  first.offset);
+	    else
+		disk.readRequest(first.sector, first.numSectors, first.data,
+				 first.offset);
+	    return;
+	}
+
+	Lib.debug(dbgDisk, "merged " + transfer.size() + " requests, " +
+		  (end-start) + " sectors at " + start);
+
+	int sectorSize = disk.getSectorSize();
+	buffer = new byte[(end-start)*sectorSize];
+
+	if (first.write) {
+	    for (Iterator<Request> i=transfer.iterator(); i.hasNext(); ) {
+		Request request = i.next();
+		System.arraycopy(request.data, request.offset, buffer,
+				 (request.sector-start)*sectorSize,
+				 request.numSectors*sectorSize);
+	    }
+
+	    disk.writeRequest(start, end-start, buffer, 0);
+	}
+	else {
+	    disk.readRequest(start, end-start, buffer, 0);
+	}
+    }
+
+    /**
+     * Return the queued request to send next, or <tt>null</tt> if there are
+     * none.
+     */
+    private Request pickNext() {
+	if (queue.isEmpty())
+	    return null;
+
+	if (policy == policyFifo)
+	    return queue.getFirst();
+
+	if (policy == policyLook && !sweepingUp) {
+	    Request next = highestBelow(position);
+	    if (next != null)
+		return next;
+
+	    sweepingUp = true;
+	}
+
+	Request next = lowestFrom(position);
+	if (next != null)
+	    return next;
+
+	if (policy == policyLook) {
+	    sweepingUp = false;
+	    return highestBelow(position);
+	}
+
+	// C-LOOK: back to the lowest request
+	return lowestFrom(0);
+    }
+
+    private Request lowestFrom(int sector) {
+	Request lowest = null;
+	for (Iterator<Request> i=queue.iterator(); i.hasNext(); ) {
+	    Request request = i.next();
+	    if (request.sector >= sector &&
+		(lowest == null || request.sector < lowest.sector))
+		lowest = request;
+	}
+
+	return lowest;
+    }
+
+    private Request highestBelow(int sector) {
+	Request highest = null;
+	for (Iterator<Request> i=queue.iterator(); i.hasNext(); ) {
+	    Request request = i.next();
+	    if (request.sector < sector &&
+		(highest == null || request.sector > highest.sector))
+		highest = request;
+	}
+
+	return highest;
+    }
+
+    private void requestDone() {
+	Lib.assertTrue(transfer != null);
+
+	int sectorSize = disk.getSectorSize();
+	int start = transfer.getFirst().sector;
+
+	for (Iterator<Request> i=transfer.iterator(); i.hasNext(); ) {
+	    Request request = i.next();
+	    if (buffer != null && !request.write)
+		System.arraycopy(buffer, (request.sector-start)*sectorSize,
+				 request.data, request.offset,
+				 request.numSectors*sectorSize);
+	    request.done.V();
+	}
+
+	buffer = null;
+	startTransfer();
+    }
+
+    /**
+     * Test the disk schedulers. Many threads read from the disk at once,
+     * half of them single sectors all over the disk, and half of them
+     * together reading one region of it, each taking every few sectors.
+     * Every scheduler serves the same reads, and the average seek distance
+     * and the throughput of each are printed.
+     */
+    public static void benchmark() {
+	final int numReaders = 16, numReads = 32;
+
+	final Disk disk = Machine.disk();
+	final int sectorSize = disk.getSectorSize();
+
+	final int[][] sectors = new int[numReaders][numReads];
+	int region = Lib.random(disk.getNumSectors() - numReaders*numReads/2);
+	for (int i=0; i<numReaders; i++) {
+	    for (int j=0; j<numReads; j++) {
+		if (i%2 == 0)
+		    sectors[i][j] = Lib.random(disk.getNumSectors());
+		else
+		    sectors[i][j] = region + j*numReaders/2 + i/2;
+	    }
+	}
+
+	String[] schedulers = { "fifo", "look", "clook", "clook" };
+	int[] maxTransfers = { 1, 1, 1, disk.getSectorsPerTrack() };
+
+	// the file system may be using the disk, so share its SynchDisk
+	final SynchDisk synchDisk = getSynchDisk();
+	int savedPolicy = synchDisk.policy;
+	int savedMaxTransfer = synchDisk.maxTransfer;
+
+	for (int k=0; k<schedulers.length; k++) {
+	    synchDisk.policy = policyFor(schedulers[k]);
+	    synchDisk.maxTransfer = maxTransfers[k];
+
+	    int requests = disk.getNumRequests();
+	    long tracks = disk.getNumSeekTracks();
+	    long start = Machine.timer().getTime();
+
+	    KThread[] readers = new KThread[numReaders];
+	    for (int i=0; i<numReaders; i++) {
+		final int[] reads = sectors[i];
+		readers[i] = new KThread(new Runnable() {
+		    public void run() {
+			byte[] data = new byte[sectorSize];
+			for (int j=0; j<reads.length; j++)
+			    synchDisk.readSector(reads[j], data, 0);
+		    }
+		}).setName("disk reader " + i);
+		readers[i].fork();
+	    }
+
+	    for (int i=0; i<numReaders; i++)
+		readers[i].join();
+
+	    long elapsed = Machine.timer().getTime() - start;
+	    requests = disk.getNumRequests() - requests;
+	    long tenths = (disk.getNumSeekTracks() - tracks) * 10 / requests;
+
+	    System.out.println("disk " + schedulers[k]
+			       + (maxTransfers[k] > 1 ? ", merging" : "")
+			       + ": " + numReaders*numReads + " reads in "
+			       + requests + " transfers, average seek "
+			       + tenths/10 + "." + tenths%10 + " tracks, "
+			       + (long) numReaders*numReads*sectorSize*1000
+			       / elapsed + " bytes per 1000 ticks");
+	}
+
+	synchDisk.policy = savedPolicy;
+	synchDisk.maxTransfer = savedMaxTransfer;
+    }
+
+    private static class Request {
+	Request(boolean write, int sector, int numSectors, byte[] data,
+		int offset) {
+	    this.write = write;
+	    this.sector = sector;
+	    this.numSectors = numSectors;
+	    this.data = data;
+	    this.offset = offset;
+	}
+
+	boolean write;
+	int sector, numSectors;
+	byte[] data;
+	int offset;
+
+	/** Signaled when the disk has completed the request. */
+	Semaphore done = new Semaphore(0);
+    }
+
+    private static SynchDisk synchDisk = null;
+
+    private Disk disk;
+    private int maxTransfer;
+
+    private static final int policyFifo = 0;
+    private static final int policyLook = 1;
+    private static final int policyCLook = 2;
+    private int policy;
+    private boolean sweepingUp = true;
+
+    /** The requests waiting to be sent to the disk, in arrival order. */
+    private LinkedList<Request> queue = new LinkedList<Request>();
+    /** The requests the disk is serving, or <tt>null</tt> if it is idle. */
+    private LinkedList<Request> transfer = null;
+    /** The buffer for a merged transfer. */
+    private byte[] buffer = null;
+    /** Where the last transfer left the head: the sector after it when
+     *  sweeping up, or its first sector when sweeping down. */
+    private int position = 0;
+
+    private static final char dbgDisk = 'd';
+}
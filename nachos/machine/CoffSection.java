@@ -200,6 +200,59 @@ public class CoffSection {
 	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
 
 	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+
+	Machine.processor().invalidatePage(ppn);
+    }
+
+    /**
+     * Load every page of this section into physical memory, reading all the
+     * initialized data with a single read, instead of one read per page.
+     * Uninitialized bytes are zero-filled.
+     *
+     * @param	ppns	the physical page to load each page of this section
+     *			into, in order.
+     */
+    public void loadPages(int[] ppns) {
+	Lib.assertTrue(file != null);
+	Lib.assertTrue(ppns.length == numPages);
+
+	int pageSize = Processor.pageSize;
+	byte[] memory = Machine.processor().getMemory();
+	int initlen = initialized ? size : 0;
+
+	boolean contiguous = true;
+	for (int i=0; i<numPages; i++) {
+	    Lib.assertTrue(ppns[i]>=0 &&
+			   ppns[i]<Machine.processor().getNumPhysPages());
+	    if (ppns[i] != ppns[0]+i)
+		contiguous = false;
+	}
+
+	if (initlen > 0) {
+	    if (contiguous) {
+		// straight into memory
+		Lib.strictReadFile(file, contentOffset, memory,
+				   ppns[0]*pageSize, initlen);
+	    }
+	    else {
+		byte[] buf = new byte[initlen];
+		Lib.strictReadFile(file, contentOffset, buf, 0, initlen);
+
+		for (int i=0; i<numPages; i++) {
+		    int len = Math.min(pageSize, initlen - i*pageSize);
+		    System.arraycopy(buf, i*pageSize, memory, ppns[i]*pageSize,
+				     len);
+		}
+	    }
+	}
+
+	for (int i=0; i<numPages; i++) {
+	    int len = Math.max(0, Math.min(pageSize, initlen - i*pageSize));
+	    Arrays.fill(memory, ppns[i]*pageSize+len, (ppns[i]+1)*pageSize,
+			(byte) 0);
+
+	    Machine.processor().invalidatePage(ppns[i]);
+	}
     }
 
     /** The COFF object to which this section belongs. */
@@ -0,0 +1,307 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A simulated disk. The disk is divided into tracks of sectors, and is
+ * stored in a single image file in the host file system, named by
+ * <tt>Disk.imageFile</tt>. Its geometry is set by <tt>Disk.numTracks</tt>,
+ * <tt>Disk.sectorsPerTrack</tt> and <tt>Disk.sectorSize</tt>.
+ *
+ * <p>
+ * Only one request may be outstanding at a time. A request transfers one or
+ * more consecutive sectors, and completes with an interrupt after as much
+ * simulated time as a real disk would take: the time to seek to the first
+ * sector's track, the time for that sector to rotate under the head, and the
+ * time for the sectors to pass under it. Seeking across <i>d</i> tracks
+ * takes <tt>Stats.SeekTime</tt>/4 to start and settle, plus
+ * <tt>Stats.SeekTime</tt> for every half of the disk crossed. The disk
+ * rotates once every <tt>Stats.RotationTime</tt> ticks, and a transfer that
+ * runs onto the next track pays for a one track seek.
+ *
+ * <p>
+ * The image file keeps its contents when Nachos exits, so anything written
+ * to the disk will still be there the next time Nachos runs.
+ */
+public class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory that holds the disk image.
+     */
+    public Disk(Privilege privilege, File directory) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 64);
+	sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+	sectorSize = Config.getInteger("Disk.sectorSize", 128);
+	Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0 && sectorSize > 0);
+
+	final File f =
+	    new File(directory, Config.getString("Disk.imageFile", "DISK"));
+
+	privilege.doPrivileged(new Runnable() {
+	    public void run() {
+		try {
+		    image = new RandomAccessFile(f, "rw");
+		    long size = (long) getNumSectors() * sectorSize;
+		    if (image.length() < size)
+			image.setLength(size);
+		}
+		catch (IOException e) {
+		    image = null;
+		}
+	    }
+	});
+
+	Lib.assertTrue(image != null, "unable to open the disk image");
+
+	interrupt = new Runnable() {
+	    public void run() { interrupt(); }
+	};
+    }
+
+    /**
+     * Set this disk's interrupt handler. The handler is called every time a
+     * request started with <tt>readRequest()</tt> or <tt>writeRequest()</tt>
+     * completes. This means that another request can be started.
+     *
+     * @param	interruptHandler	the callback to call when a request
+     *					completes.
+     */
+    public void setInterruptHandler(Runnable interruptHandler) {
+	this.interruptHandler = interruptHandler;
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return sectorSize;
+    }
+
+    /**
+     * Return the number of sectors in a track.
+     *
+     * @return	the number of sectors in a track.
+     */
+    public int getSectorsPerTrack() {
+	return sectorsPerTrack;
+    }
+
+    /**
+     * Return the number of tracks on the disk.
+     *
+     * @return	the number of tracks.
+     */
+    public int getNumTracks() {
+	return numTracks;
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numTracks * sectorsPerTrack;
+    }
+
+    /**
+     * Return the track the head is over. While a request is outstanding,
+     * this is the track where the request will leave the head.
+     *
+     * @return	the head's track.
+     */
+    public int getHeadTrack() {
+	return headTrack;
+    }
+
+    /**
+     * Return the number of requests the disk has completed.
+     *
+     * @return	the number of requests.
+     */
+    public int getNumRequests() {
+	return privilege.stats.numDiskRequests;
+    }
+
+    /**
+     * Return the total number of tracks the head has moved across.
+     *
+     * @return	the total seek distance.
+     */
+    public long getNumSeekTracks() {
+	return privilege.stats.numDiskSeekTracks;
+    }
+
+    /**
+     * Start reading sectors into an array. An interrupt follows when the
+     * data is in the array. If a request is already outstanding, the result
+     * is not defined.
+     *
+     * @param	sector		the first sector to read.
+     * @param	numSectors	the number of consecutive sectors to read.
+     * @param	data		the array to read into.
+     * @param	offset		the offset in the array of the first byte.
+     */
+    public void readRequest(int sector, int numSectors, byte[] data,
+			    int offset) {
+	request(false, sector, numSectors, data, offset);
+    }
+
+    /**
+     * Start writing sectors from an array. An interrupt follows when the
+     * data has been written. The array must not change until then. If a
+     * request is already outstanding, the result is not defined.
+     *
+     * @param	sector		the first sector to write.
+     * @param	numSectors	the number of consecutive sectors to write.
+     * @param	data		the array to write from.
+     * @param	offset		the offset in the array of the first byte.
+     */
+    public void writeRequest(int sector, int numSectors, byte[] data,
+			     int offset) {
+	request(true, sector, numSectors, data, offset);
+    }
+
+    private void request(boolean write, int sector, int numSectors,
+			 byte[] data, int offset) {
+	Lib.assertTrue(!busy, "disk request while another is outstanding");
+	Lib.assertTrue(numSectors > 0 && sector >= 0 &&
+		       sector + numSectors <= getNumSectors());
+	Lib.assertTrue(offset >= 0 &&
+		       offset + numSectors*sectorSize <= data.length);
+
+	busy = true;
+	this.write = write;
+	this.sector = sector;
+	this.numSectors = numSectors;
+	this.data = data;
+	this.offset = offset;
+
+	long latency = latency(sector, numSectors);
+	seekDistance = Math.abs(sector/sectorsPerTrack - headTrack) +
+	    (sector+numSectors-1)/sectorsPerTrack - sector/sectorsPerTrack;
+
+	Lib.debug(dbgDisk, (write ? "write " : "read ") + numSectors +
+		  " sectors at " + sector + " (track " +
+		  sector/sectorsPerTrack + ", head at " + headTrack +
+		  "), latency " + latency);
+
+	headTrack = (sector+numSectors-1) / sectorsPerTrack;
+
+	privilege.interrupt.schedule(latency, "disk", interrupt);
+    }
+
+    /**
+     * Return the time to seek across the specified number of tracks.
+     */
+    private long seekTime(int distance) {
+	if (distance == 0)
+	    return 0;
+
+	return Stats.SeekTime/4 + 2L*Stats.SeekTime*distance/numTracks;
+    }
+
+    /**
+     * Return the time to transfer the specified sectors, starting now.
+     */
+    private long latency(int sector, int numSectors) {
+	long now = privilege.stats.totalTicks;
+	long time = now;
+
+	int track = headTrack;
+	while (numSectors > 0) {
+	    int nextTrack = sector / sectorsPerTrack;
+	    int first = sector % sectorsPerTrack;
+	    int count = Math.min(numSectors, sectorsPerTrack - first);
+
+	    time += seekTime(Math.abs(nextTrack - track));
+
+	    // wait for the first sector to come around
+	    long start = (long) first*Stats.RotationTime / sectorsPerTrack;
+	    time += (start - time%Stats.RotationTime + Stats.RotationTime) %
+		Stats.RotationTime;
+
+	    time += ((long) count*Stats.RotationTime + sectorsPerTrack-1) /
+		sectorsPerTrack;
+
+	    track = nextTrack;
+	    sector += count;
+	    numSectors -= count;
+	}
+
+	return Math.max(time - now, 1);
+    }
+
+    private void interrupt() {
+	Lib.assertTrue(busy);
+
+	privilege.doPrivileged(new Runnable() {
+	    public void run() { transfer(); }
+	});
+
+	if (write)
+	    privilege.stats.numDiskWrites += numSectors;
+	else
+	    privilege.stats.numDiskReads += numSectors;
+	privilege.stats.numDiskRequests++;
+	privilege.stats.numDiskSeekTracks += seekDistance;
+
+	busy = false;
+	data = null;
+
+	if (interruptHandler != null)
+	    interruptHandler.run();
+    }
+
+    private void transfer() {
+	int length = numSectors*sectorSize;
+
+	try {
+	    image.seek((long) sector*sectorSize);
+	    if (write) {
+		image.write(data, offset, length);
+	    }
+	    else {
+		// the image is never shorter than the disk
+		image.readFully(data, offset, length);
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk image I/O failed");
+	}
+    }
+
+    private Privilege privilege;
+    private RandomAccessFile image = null;
+
+    private int numTracks, sectorsPerTrack, sectorSize;
+
+    private Runnable interrupt;
+    private Runnable interruptHandler = null;
+
+    private int headTrack = 0;
+
+    private boolean busy = false;
+    private boolean write;
+    private int sector, numSectors;
+    private int seekDistance;
+    private byte[] data;
+    private int offset;
+
+    private static final char dbgDisk = 'd';
+}
@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -53,7 +49,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterruptQueue();
     }
 
     /**
@@ -124,13 +120,15 @@ public final class Interrupt {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	pending.add(time, numPendingInterruptsCreated++, type, handler);
+
+	if (time < nextDue)
+	    nextDue = time;
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +151,28 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long ticksUntilDue() {
+	// the debug output prints every tick, so nothing can be skipped
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (nextDue == Long.MAX_VALUE)
+	    return Long.MAX_VALUE;
+
+	return nextDue - privilege.stats.totalTicks;
+    }
+
+    private void advance(int numInstructions) {
+	long ticks = (long) numInstructions * Stats.UserTick;
+	
+	Lib.assertTrue(ticks == 0 || (ticks > 0 && ticks < ticksUntilDue()));
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += ticks;
+	stats.totalTicks += ticks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,29 +181,29 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (!pending.isEmpty() && pending.firstTime() <= time) {
+	    String type = pending.firstType();
+	    Runnable handler = pending.firstHandler();
+	    pending.removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
+	if (pending.isEmpty())
+	    nextDue = Long.MAX_VALUE;
+	else
+	    nextDue = pending.firstTime();
+
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
@@ -192,52 +212,29 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	// the queue is only partially ordered, so print a copy in order
+	PendingInterruptQueue toPrint = new PendingInterruptQueue(pending);
+	while (!toPrint.isEmpty()) {
+	    System.out.println("  " + toPrint.firstType() +
+			       ", scheduled at " + toPrint.firstTime());
+	    toPrint.removeFirst();
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private PendingInterruptQueue pending;
+    /**
+     * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+     * if there are none. Lets the common case of a tick with nothing due
+     * avoid the pending queue entirely.
+     */
+    private long nextDue = Long.MAX_VALUE;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +246,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long ticksUntilDue() {
+	    return Interrupt.this.ticksUntilDue();
+	}
+
+	public void advance(int numInstructions) {
+	    Interrupt.this.advance(numInstructions);
+	}
     }
 }
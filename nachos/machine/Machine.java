@@ -183,8 +183,15 @@ public final class Machine {
 	if (Config.getBoolean("Machine.console"))
 	    console = new StandardConsole(privilege);
 
-	if (Config.getBoolean("Machine.stubFileSystem"))
-	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
+	if (Config.getBoolean("Machine.stubFileSystem")) {
+	    if (Config.getBoolean("Machine.nioFileSystem", false))
+		stubFileSystem = new NioFileSystem(privilege, testDirectory);
+	    else
+		stubFileSystem = new StubFileSystem(privilege, testDirectory);
+	}
+
+	if (Config.getBoolean("Machine.disk", false))
+	    disk = new Disk(privilege, testDirectory);
 
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
@@ -338,6 +345,13 @@ public final class Machine {
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
 
+    /**
+     * Return the simulated disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
+
     /**
      * Return the network link.
      *
@@ -358,6 +372,7 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
 
@@ -0,0 +1,308 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.threads.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A file system that redirects all requests to the host operating system's
+ * file system, like <tt>StubFileSystem</tt>, but through NIO file channels.
+ * It is used in place of the stub file system if
+ * <tt>Machine.nioFileSystem</tt> is set.
+ *
+ * <p>
+ * Reads and writes are positional, so they need no seek, and go straight
+ * into or out of the caller's array. Every open instance of a file shares a
+ * single channel, and at most <tt>NioFileSystem.maxChannels</tt> channels are
+ * open on the host at once. When another is needed, the least recently used
+ * one is closed, and reopened the next time its file is accessed, so there is
+ * no limit on the number of files Nachos can have open. Each access costs the
+ * same simulated time as it does with the stub file system.
+ */
+public class NioFileSystem implements FileSystem {
+    /**
+     * Allocate a new NIO file system.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the root directory of the file system.
+     */
+    public NioFileSystem(Privilege privilege, File directory) {
+	this.privilege = privilege;
+	this.directory = directory;
+
+	maxChannels = Config.getInteger("NioFileSystem.maxChannels", 16);
+	Lib.assertTrue(maxChannels > 0);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	if (!StubFileSystem.checkName(name))
+	    return null;
+
+	delay();
+
+	HostFile file = files.get(name);
+	if (file == null) {
+	    file = new HostFile(new File(directory, name));
+	    if (!truncate && !file.exists())
+		return null;
+	}
+
+	FileChannel channel = file.getChannel();
+	if (channel == null)
+	    return null;
+
+	if (truncate) {
+	    try {
+		channel.truncate(0);
+	    }
+	    catch (IOException e) {
+		if (file.openCount == 0) {
+		    channels.remove(file);
+		    file.closeChannel();
+		}
+		return null;
+	    }
+	}
+
+	if (file.openCount == 0)
+	    files.put(name, file);
+	file.openCount++;
+
+	return new NioOpenFile(name, file);
+    }
+
+    public boolean remove(String name) {
+	if (!StubFileSystem.checkName(name))
+	    return false;
+
+	delay();
+
+	// an open file stays readable after it is removed, as long as its
+	// channel is never closed
+	HostFile file = files.remove(name);
+	if (file != null && file.getChannel() != null)
+	    file.pinned = true;
+
+	final File f = new File(directory, name);
+	final boolean[] removed = new boolean[1];
+	privilege.doPrivileged(new Runnable() {
+	    public void run() { removed[0] = f.delete(); }
+	});
+
+	return removed[0];
+    }
+
+    private void delay() {
+	long time = Machine.timer().getTime();
+	int amount = 1000;
+	ThreadedKernel.alarm.waitUntil(amount);
+	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
+    }
+
+    /**
+     * Close the least recently used channel that is not pinned, to make room
+     * for another.
+     */
+    private void closeChannel() {
+	Iterator<HostFile> i = channels.keySet().iterator();
+	while (i.hasNext()) {
+	    HostFile file = i.next();
+	    if (!file.pinned) {
+		i.remove();
+		file.closeChannel();
+		return;
+	    }
+	}
+    }
+
+    /** A file on the host, shared by all its open instances. */
+    private class HostFile {
+	HostFile(File f) {
+	    this.f = f;
+	}
+
+	boolean exists() {
+	    final boolean[] exists = new boolean[1];
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { exists[0] = f.isFile(); }
+	    });
+
+	    return exists[0];
+	}
+
+	/**
+	 * Return this file's channel, opening it if it was never opened or was
+	 * closed to make room for another.
+	 */
+	FileChannel getChannel() {
+	    if (channel != null) {
+		channels.get(this);
+		return channel;
+	    }
+
+	    // reopening must not create a file removed behind our back
+	    if (openCount > 0 && !exists())
+		return null;
+
+	    if (channels.size() >= maxChannels)
+		NioFileSystem.this.closeChannel();
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			channel = new RandomAccessFile(f, "rw").getChannel();
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	    if (channel != null)
+		channels.put(this, Boolean.TRUE);
+
+	    return channel;
+	}
+
+	void closeChannel() {
+	    try {
+		channel.close();
+	    }
+	    catch (IOException e) {
+	    }
+
+	    channel = null;
+	}
+
+	void close() {
+	    Lib.assertTrue(openCount > 0);
+
+	    openCount--;
+	    if (openCount == 0) {
+		if (files.get(f.getName()) == this)
+		    files.remove(f.getName());
+
+		if (channel != null) {
+		    channels.remove(this);
+		    closeChannel();
+		}
+	    }
+	}
+
+	File f;
+	FileChannel channel = null;
+	/** The number of open instances of the file. */
+	int openCount = 0;
+	/** Set if the channel must stay open, because the file was removed. */
+	boolean pinned = false;
+    }
+
+    private class NioOpenFile extends OpenFileWithPosition {
+	NioOpenFile(String name, HostFile file) {
+	    super(NioFileSystem.this, name);
+
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0)
+		return -1;
+
+	    delay();
+
+	    FileChannel channel = file.getChannel();
+	    if (channel == null)
+		return -1;
+
+	    try {
+		ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+		int amount = 0;
+		while (buffer.hasRemaining()) {
+		    int count = channel.read(buffer, pos+amount);
+		    if (count <= 0)
+			break;
+		    amount += count;
+		}
+
+		return amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	    catch (IndexOutOfBoundsException e) {
+		return -1;
+	    }
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0)
+		return -1;
+
+	    delay();
+
+	    FileChannel channel = file.getChannel();
+	    if (channel == null)
+		return -1;
+
+	    try {
+		ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+		while (buffer.hasRemaining())
+		    channel.write(buffer, pos + (length - buffer.remaining()));
+
+		return length;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	    catch (IndexOutOfBoundsException e) {
+		return -1;
+	    }
+	}
+
+	public int length() {
+	    if (!open)
+		return -1;
+
+	    FileChannel channel = file.getChannel();
+	    if (channel == null)
+		return -1;
+
+	    try {
+		return (int) channel.size();
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public void close() {
+	    if (open) {
+		open = false;
+		file.close();
+	    }
+	}
+
+	private HostFile file;
+	private boolean open = true;
+    }
+
+    private Privilege privilege;
+    private File directory;
+    private int maxChannels;
+
+    /** The open files, by name. */
+    private HashMap<String, HostFile> files = new HashMap<String, HostFile>();
+    /** The files with open channels, least recently used first. */
+    private LinkedHashMap<HostFile, Boolean> channels =
+	new LinkedHashMap<HostFile, Boolean>(16, 0.75f, true);
+}
@@ -0,0 +1,383 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * A priority queue of pending interrupts, used by <tt>Interrupt</tt>.
+ * Interrupts are ordered by the time they are due, and interrupts due at the
+ * same time are ordered by a unique, increasing id, so the dispatch order is
+ * completely deterministic.
+ *
+ * <p>
+ * The queue is an array-backed 4-ary heap stored in parallel arrays, keyed
+ * directly on the <tt>long</tt> time and id. Devices reschedule themselves
+ * constantly, so once the arrays have grown to hold every device's next
+ * interrupt, scheduling and dispatching an interrupt allocates nothing.
+ */
+final class PendingInterruptQueue {
+    /**
+     * Allocate a new, empty queue.
+     */
+    PendingInterruptQueue() {
+	times = new long[initialCapacity];
+	ids = new long[initialCapacity];
+	types = new String[initialCapacity];
+	handlers = new Runnable[initialCapacity];
+    }
+
+    /**
+     * Allocate a new queue holding the same interrupts as another queue.
+     *
+     * @param	queue	the queue to copy.
+     */
+    PendingInterruptQueue(PendingInterruptQueue queue) {
+	size = queue.size;
+	times = queue.times.clone();
+	ids = queue.ids.clone();
+	types = queue.types.clone();
+	handlers = queue.handlers.clone();
+    }
+
+    /**
+     * Test whether this queue is empty.
+     *
+     * @return	<tt>true</tt> if no interrupts are pending.
+     */
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Add an interrupt to this queue.
+     *
+     * @param	time	the time at which the interrupt is due.
+     * @param	id	a unique id, larger than that of any interrupt added
+     *			before.
+     * @param	type	the name of the interrupt.
+     * @param	handler	the interrupt handler.
+     */
+    void add(long time, long id, String type, Runnable handler) {
+	if (size == times.length)
+	    grow();
+
+	// sift the hole at the end up to where the new interrupt belongs
+	int hole = size++;
+	while (hole > 0) {
+	    int parent = (hole-1) / arity;
+	    if (!less(time, id, times[parent], ids[parent]))
+		break;
+
+	    move(parent, hole);
+	    hole = parent;
+	}
+
+	set(hole, time, id, type, handler);
+    }
+
+    /**
+     * Return the time at which the first interrupt in this queue is due. The
+     * queue must not be empty.
+     *
+     * @return	the time of the first interrupt.
+     */
+    long firstTime() {
+	Lib.assertTrue(size > 0);
+	return times[0];
+    }
+
+    /**
+     * Return the name of the first interrupt in this queue. The queue must
+     * not be empty.
+     *
+     * @return	the name of the first interrupt.
+     */
+    String firstType() {
+	Lib.assertTrue(size > 0);
+	return types[0];
+    }
+
+    /**
+     * Return the handler of the first interrupt in this queue. The queue must
+     * not be empty.
+     *
+     * @return	the handler of the first interrupt.
+     */
+    Runnable firstHandler() {
+	Lib.assertTrue(size > 0);
+	return handlers[0];
+    }
+
+    /**
+     * Remove the first interrupt from this queue. The queue must not be
+     * empty.
+     */
+    void removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	int last = --size;
+	long time = times[last];
+	long id = ids[last];
+	String type = types[last];
+	Runnable handler = handlers[last];
+
+	// don't hold on to handlers that have already run
+	types[last] = null;
+	handlers[last] = null;
+
+	if (last == 0)
+	    return;
+
+	// sift the hole at the root down to where the last interrupt belongs
+	int hole = 0;
+	while (true) {
+	    int child = hole*arity + 1;
+	    if (child >= size)
+		break;
+
+	    int end = Math.min(child+arity, size);
+	    int least = child;
+	    for (int i=child+1; i<end; i++) {
+		if (less(times[i], ids[i], times[least], ids[least]))
+		    least = i;
+	    }
+
+	    if (!less(times[least], ids[least], time, id))
+		break;
+
+	    move(least, hole);
+	    hole = least;
+	}
+
+	set(hole, time, id, type, handler);
+    }
+
+    private static boolean less(long time1, long id1, long time2, long id2) {
+	return time1 < time2 || (time1 == time2 && id1 < id2);
+    }
+
+    private void move(int from, int to) {
+	times[to] = times[from];
+	ids[to] = ids[from];
+	types[to] = types[from];
+	handlers[to] = handlers[from];
+    }
+
+    private void set(int i, long time, long id, String type,
+		     Runnable handler) {
+	times[i] = time;
+	ids[i] = id;
+	types[i] = type;
+	handlers[i] = handler;
+    }
+
+    private void grow() {
+	int capacity = times.length * 2;
+
+	long[] newTimes = new long[capacity];
+	long[] newIds = new long[capacity];
+	String[] newTypes = new String[capacity];
+	Runnable[] newHandlers = new Runnable[capacity];
+
+	System.arraycopy(times, 0, newTimes, 0, size);
+	System.arraycopy(ids, 0, newIds, 0, size);
+	System.arraycopy(types, 0, newTypes, 0, size);
+	System.arraycopy(handlers, 0, newHandlers, 0, size);
+
+	times = newTimes;
+	ids = newIds;
+	types = newTypes;
+	handlers = newHandlers;
+    }
+
+    private int size = 0;
+    private long[] times;
+    private long[] ids;
+    private String[] types;
+    private Runnable[] handlers;
+
+    private static final int arity = 4;
+    private static final int initialCapacity = 16;
+
+    /**
+     * Compare this queue against the <tt>TreeSet</tt> of interrupt objects it
+     * replaced, on a simulated device-heavy machine: a timer with its
+     * autograder interrupt, a console, a network link, and an elevator bank
+     * with riders, all rescheduling themselves as their interrupts are
+     * dispatched. Checks that both dispatch interrupts in the same order, and
+     * prints the average cost of each dispatch.
+     *
+     * <p>
+     * Run with <tt>java nachos.machine.PendingInterruptQueue</tt>, optionally
+     * followed by the number of elevators and riders to simulate.
+     *
+     * @param	args	the number of elevators and riders.
+     */
+    public static void main(String[] args) {
+	int numElevators = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+	int numRiders = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+	int numEvents = 2000000;
+
+	System.out.println("devices: timer, console, network, " + numElevators
+			   + " elevators, " + numRiders + " riders");
+
+	for (int round=0; round<3; round++) {
+	    long start = System.nanoTime();
+	    long heapOrder = runHeap(numElevators, numRiders, numEvents);
+	    long heapTime = System.nanoTime() - start;
+
+	    start = System.nanoTime();
+	    long treeOrder = runTreeSet(numElevators, numRiders, numEvents);
+	    long treeTime = System.nanoTime() - start;
+
+	    Lib.assertTrue(heapOrder == treeOrder,
+			   "dispatch order differs from TreeSet");
+
+	    System.out.println("round " + round
+			       + ": heap " + heapTime/numEvents + " ns/event"
+			       + ", TreeSet " + treeTime/numEvents
+			       + " ns/event");
+	}
+    }
+
+    /**
+     * Return the delay before the specified device schedules its next
+     * interrupt. Devices <tt>0</tt> to <tt>4</tt> are the timer, the console
+     * reader and writer, and the network receiver and sender; the next
+     * <tt>numElevators</tt> are elevators; the rest are riders.
+     */
+    private static long deviceDelay(int device, int numElevators,
+				    Random random) {
+	switch (device) {
+	case 0:
+	    int delay = Stats.TimerTicks;
+	    return delay + random.nextInt(delay/10) - (delay/20);
+	case 1:
+	case 2:
+	    return Stats.ConsoleTime;
+	case 3:
+	case 4:
+	    return Stats.NetworkTime;
+	default:
+	    if (device < 5+numElevators)
+		return Stats.ElevatorTicks;
+	    else
+		return 1 + random.nextInt(Stats.ElevatorTicks);
+	}
+    }
+
+    private static long runHeap(int numElevators, int numRiders,
+				int numEvents) {
+	Random random = new Random(0);
+	int numDevices = 5 + numElevators + numRiders;
+	Runnable[] devices = benchmarkDevices(numDevices);
+	PendingInterruptQueue queue = new PendingInterruptQueue();
+	long id = 0, order = 0;
+
+	for (int i=0; i<numDevices; i++)
+	    queue.add(deviceDelay(i, numElevators, random), id++, "device",
+		      devices[i]);
+
+	for (int event=0; event<numEvents; event++) {
+	    long time = queue.firstTime();
+	    int device = ((BenchmarkDevice) queue.firstHandler()).number;
+	    queue.removeFirst();
+
+	    order = order*31 + device;
+
+	    // the autograder's interrupt is one-shot, like the timer's
+	    if (device == numDevices)
+		continue;
+
+	    queue.add(time + deviceDelay(device, numElevators, random), id++,
+		      "device", devices[device]);
+	    // the timer also schedules the autograder's interrupt
+	    if (device == 0)
+		queue.add(time + 1, id++, "timerAG", devices[numDevices]);
+	}
+
+	return order;
+    }
+
+    private static long runTreeSet(int numElevators, int numRiders,
+				   int numEvents) {
+	Random random = new Random(0);
+	int numDevices = 5 + numElevators + numRiders;
+	Runnable[] devices = benchmarkDevices(numDevices);
+	TreeSet<TreeSetInterrupt> queue = new TreeSet<TreeSetInterrupt>();
+	long id = 0, order = 0;
+
+	for (int i=0; i<numDevices; i++)
+	    queue.add(new TreeSetInterrupt(deviceDelay(i, numElevators, random),
+					   id++, devices[i]));
+
+	for (int event=0; event<numEvents; event++) {
+	    TreeSetInterrupt next = queue.pollFirst();
+	    int device = ((BenchmarkDevice) next.handler).number;
+
+	    order = order*31 + device;
+
+	    if (device == numDevices)
+		continue;
+
+	    queue.add(new TreeSetInterrupt(next.time +
+					   deviceDelay(device, numElevators,
+						       random),
+					   id++, devices[device]));
+	    if (device == 0)
+		queue.add(new TreeSetInterrupt(next.time + 1, id++,
+					       devices[numDevices]));
+	}
+
+	return order;
+    }
+
+    private static Runnable[] benchmarkDevices(int numDevices) {
+	// one extra for the autograder's timer interrupt
+	Runnable[] devices = new Runnable[numDevices+1];
+	for (int i=0; i<devices.length; i++)
+	    devices[i] = new BenchmarkDevice(i);
+
+	return devices;
+    }
+
+    private static class BenchmarkDevice implements Runnable {
+	BenchmarkDevice(int number) {
+	    this.number = number;
+	}
+
+	public void run() {
+	}
+
+	int number;
+    }
+
+    /** The interrupt object that <tt>Interrupt</tt> used to allocate. */
+    private static class TreeSetInterrupt
+	implements Comparable<TreeSetInterrupt> {
+	TreeSetInterrupt(long time, long id, Runnable handler) {
+	    this.time = time;
+	    this.id = id;
+	    this.handler = handler;
+	}
+
+	public int compareTo(TreeSetInterrupt toOccur) {
+	    if (time < toOccur.time)
+		return -1;
+	    else if (time > toOccur.time)
+		return 1;
+	    else if (id < toOccur.id)
+		return -1;
+	    else if (id > toOccur.id)
+		return 1;
+	    else
+		return 0;
+	}
+
+	long time;
+	long id;
+	Runnable handler;
+    }
+}
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,8 +48,13 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodedPages = new Decoded[numPhysPages][];
+	blockPages = new Block[numPhysPages][];
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    Lib.assertTrue(tlbSize > 0, "Processor.tlbSize must be positive");
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
@@ -55,6 +62,8 @@ public final class Processor {
 	else {
 	    translations = null;
 	}
+
+	flushTranslationCache();
     }
 
     /**
@@ -92,17 +101,114 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// the disassembler needs to see every instruction as it is fetched
+	boolean useBlocks = !(Lib.test(dbgProcessor) ||
+			      Lib.test(dbgDisassemble) ||
+			      Lib.test(dbgFullDisassemble));
 	
 	while (true) {
-	    try {
-		inst.run();
-	    }
-	    catch (MipsException e) {
-		e.handle();
-	    }
+	    if (useBlocks)
+		runBlock(inst);
+	    else
+		step(inst);
+	}
+    }
 
+    /**
+     * Execute a single instruction at the current PC, and then advance the
+     * simulated time by one tick.
+     *
+     * @param	inst	the instruction state to use.
+     */
+    private void step(Instruction inst) {
+	try {
+	    inst.run();
+	}
+	catch (MipsException e) {
+	    e.handle();
 	    privilege.interrupt.tick(false);
+	    return;
 	}
+
+	charge(1);
+    }
+
+    /**
+     * Advance the simulated time for the specified number of instructions,
+     * which have completed without an exception. Only the tick at which an
+     * interrupt becomes due has to go through <tt>tick()</tt>; every other
+     * tick is charged directly, since it would not have done anything else.
+     *
+     * @param	numInstructions	the number of instructions executed.
+     */
+    private void charge(int numInstructions) {
+	if ((long) numInstructions * Stats.UserTick <
+	    privilege.interrupt.ticksUntilDue()) {
+	    privilege.interrupt.advance(numInstructions);
+	}
+	else {
+	    privilege.interrupt.advance(numInstructions-1);
+	    privilege.interrupt.tick(false);
+	}
+    }
+
+    /**
+     * Execute the basic block starting at the current PC. The simulated time
+     * for the block is charged at once, so a block is only run if no
+     * interrupt can become due before its last instruction; otherwise, or if
+     * the PC is in a delay slot, a single instruction is executed instead.
+     * This leaves interrupt timing exactly as if every instruction had been
+     * followed by its own tick.
+     *
+     * @param	inst	the instruction state to use.
+     */
+    private void runBlock(Instruction inst) {
+	int pc = registers[regPC];
+
+	// a block assumes its instructions are executed sequentially
+	if (registers[regNextPC] != pc+4) {
+	    step(inst);
+	    return;
+	}
+
+	Block block;
+	try {
+	    block = blockAt(translate(pc, 4, false));
+	}
+	catch (MipsException e) {
+	    e.handle();
+	    privilege.interrupt.tick(false);
+	    return;
+	}
+
+	int length = block.code.length;
+	if ((long) (length-1) * Stats.UserTick >=
+	    privilege.interrupt.ticksUntilDue()) {
+	    step(inst);
+	    return;
+	}
+
+	int executed = 0;
+	codeModified = false;
+	try {
+	    while (executed < length) {
+		inst.run(block.code[executed]);
+		executed++;
+
+		// a store may have overwritten the rest of this block
+		if (codeModified)
+		    break;
+	    }
+	}
+	catch (MipsException e) {
+	    privilege.interrupt.advance(executed);
+	    e.handle();
+	    privilege.interrupt.tick(false);
+	    return;
+	}
+
+	charge(executed);
     }
 
     /**
@@ -169,12 +275,19 @@ public final class Processor {
      * the specified page table. The size of the current address space will be
      * determined from the length of the page table array.
      *
+     * <p>
+     * Translations are cached by the processor until the next exception or
+     * interrupt. A kernel that changes an entry of the current page table
+     * in place, and then returns to user mode without going through
+     * either, must call this method again.
+     *
      * @param	pageTable	the page table to use.
      */
     public void setPageTable(TranslationEntry[] pageTable) {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushTranslationCache();
     }
 
     /**
@@ -216,6 +329,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	flushTranslationCache();
     }
 
     /**
@@ -308,6 +422,18 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	// check the translation cache before the page table or TLB
+	int slot = vpn % translationCacheSize;
+	if (cachedVPNs[slot] == vpn && (!writing || cachedWritable[slot])) {
+	    TranslationEntry entry = cachedEntries[slot];
+
+	    entry.used = true;
+	    if (writing)
+		entry.dirty = true;
+
+	    return cachedPages[slot] + offset;
+	}
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -359,9 +485,29 @@ public final class Processor {
 
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
+	else {
+	    cachedVPNs[slot] = vpn;
+	    cachedEntries[slot] = entry;
+	    cachedPages[slot] = ppn*pageSize;
+	    cachedWritable[slot] = !entry.readOnly;
+	}
+
 	return paddr;
     }
 
+    /**
+     * Invalidate every translation cached by <tt>translate()</tt>. The cache
+     * holds references to page table or TLB entries, so it is flushed
+     * whenever the kernel might have changed them: when the page table or a
+     * TLB entry is replaced, and whenever the processor traps to the kernel
+     * for an exception or an interrupt (which is also the only way a context
+     * switch can happen).
+     */
+    private void flushTranslationCache() {
+	Arrays.fill(cachedVPNs, -1);
+	Arrays.fill(cachedEntries, null);
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -405,9 +551,113 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	// any instructions decoded from this page may now be stale
+	if (decodedPages[paddr / pageSize] != null ||
+	    blockPages[paddr / pageSize] != null)
+	    invalidatePage(paddr / pageSize);
+    }
+
+    /**
+     * Discard any decoded instructions and basic blocks cached for the
+     * specified physical page. The processor and the COFF loader call this
+     * whenever they write to a page; kernel code that copies instructions
+     * into memory through <tt>getMemory()</tt> must call it as well.
+     *
+     * @param	ppn	the physical page that was written.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	blockPages[ppn] = null;
+	codeModified = true;
+    }
+
+    /**
+     * Return the decoded form of the instruction at the specified physical
+     * address, decoding it only if it is not already cached. The cached word
+     * is compared against <tt>value</tt>, since the kernel may also write
+     * instructions directly through <tt>getMemory()</tt>.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word at <tt>paddr</tt>.
+     * @return	the decoded instruction.
+     */
+    private Decoded decodedAt(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	Decoded[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new Decoded[pageSize / 4];
+	    decodedPages[ppn] = page;
+	}
+
+	Decoded decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new Decoded(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Return the basic block starting at the specified physical address,
+     * building it if it is not already cached. A block extends through the
+     * first branch or jump and its delay slot, or through the first
+     * instruction that always raises an exception, but never past the end of
+     * the page.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the basic block starting at <tt>paddr</tt>.
+     */
+    private Block blockAt(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) / 4;
+
+	Block[] page = blockPages[ppn];
+	if (page == null) {
+	    page = new Block[pageSize / 4];
+	    blockPages[ppn] = page;
+	}
+
+	Block block = page[index];
+	if (block != null)
+	    return block;
+
+	int pageEnd = (ppn+1) * pageSize;
+	int length = 0;
+	for (int addr=paddr; addr<pageEnd; addr+=4) {
+	    Decoded decoded =
+		decodedAt(addr, Lib.bytesToInt(mainMemory, addr));
+	    length++;
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		// include the delay slot, if it is on this page
+		if (addr+4 < pageEnd)
+		    length++;
+		break;
+	    }
+	    if (decoded.operation == Mips.SYSCALL ||
+		decoded.operation == Mips.UNIMPL ||
+		decoded.operation == Mips.INVALID)
+		break;
+	}
+
+	Decoded[] code = new Decoded[length];
+	for (int i=0; i<length; i++)
+	    code[i] = decodedAt(paddr + i*4,
+				Lib.bytesToInt(mainMemory, paddr + i*4));
+
+	block = new Block(code);
+	page[index] = block;
+	return block;
     }
 
     /**
@@ -539,7 +789,7 @@ public final class Processor {
 
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
-    /** Number of TLB entries. */
+    /** Number of TLB entries, set by <tt>Processor.tlbSize</tt>. */
     private int tlbSize = 4;
     /**
      * Either an associative or direct-mapped set of translation entries,
@@ -547,6 +797,18 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /** Number of entries in the direct-mapped translation cache. */
+    private static final int translationCacheSize = 32;
+    /** The virtual page cached in each slot, or -1 if the slot is empty. */
+    private int[] cachedVPNs = new int[translationCacheSize];
+    /** The page table or TLB entry each cached translation came from. */
+    private TranslationEntry[] cachedEntries =
+	new TranslationEntry[translationCacheSize];
+    /** The physical address of the start of each cached page. */
+    private int[] cachedPages = new int[translationCacheSize];
+    /** <tt>true</tt> if the cached page may be written. */
+    private boolean[] cachedWritable = new boolean[translationCacheSize];
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -555,6 +817,23 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Decoded instructions, cached per physical page. A page's array is
+     * allocated the first time an instruction is fetched from it, and is
+     * dropped by <tt>invalidatePage()</tt> whenever the page is written.
+     */
+    private Decoded[][] decodedPages;
+    /**
+     * Basic blocks, cached per physical page and indexed by the word offset
+     * of their first instruction. Dropped along with the decoded
+     * instructions of the page by <tt>invalidatePage()</tt>.
+     */
+    private Block[][] blockPages;
+    /**
+     * Set by <tt>invalidatePage()</tt>, so that a running block can tell
+     * that one of its instructions overwrote code.
+     */
+    private boolean codeModified = false;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,6 +845,7 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    flushTranslationCache();
 	}
     }
 
@@ -593,6 +873,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    flushTranslationCache();
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -616,6 +897,20 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched and decoded,
+	 * as part of a basic block.
+	 *
+	 * @param	decoded	the decoded instruction at the current PC.
+	 */
+	public void run(Decoded decoded) throws MipsException {
+	    this.decoded = decoded;
+	    value = decoded.value;
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +921,56 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    int vaddr = registers[regPC];
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+				   + ", size=4");
+
+	    int paddr = translate(vaddr, 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decoded = decodedAt(paddr, value);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1325,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1337,90 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on the instruction word.
+     * Computing these is the expensive part of decoding, so they are cached
+     * in <tt>decodedPages</tt> and reused every time the word is executed.
+     */
+    private static final class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch targets use the sign-extended immediate
+	    int imm = Lib.extend(value, 0, 16);
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	    this.imm = imm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
+    /**
+     * A straight-line sequence of decoded instructions that is always
+     * executed from its first instruction, in order.
+     */
+    private static final class Block {
+	Block(Decoded[] code) {
+	    this.code = code;
+	}
+
+	final Decoded[] code;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -23,10 +23,21 @@ public final class Stats {
 			   + ", user " + userTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
+	if (numDiskRequests > 0) {
+	    long tenths = numDiskSeekTracks * 10L / numDiskRequests;
+	    System.out.println("Disk: requests " + numDiskRequests
+			       + ", average seek " + tenths/10 + "." + tenths%10
+			       + " tracks");
+	}
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numTLBMisses > 0 && userTicks >= UserTick) {
+	    long tenths = numTLBMisses * 10000L / (userTicks/UserTick);
+	    System.out.println("TLB: miss rate " + tenths/10 + "." + tenths%10
+			       + " per 1000 instructions");
+	}
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -49,6 +60,10 @@ public final class Stats {
     public int numDiskReads = 0;
     /** The total number of sectors Nachos has written to the simulated disk.*/
     public int numDiskWrites = 0;
+    /** The total number of requests the simulated disk has completed. */
+    public int numDiskRequests = 0;
+    /** The total number of tracks the disk head has moved across. */
+    public long numDiskSeekTracks = 0;
     /** The total number of characters Nachos has read from the console. */
     public int numConsoleReads = 0;
     /** The total number of characters Nachos has written to the console. */
@@ -169,7 +169,7 @@ public class StubFileSystem implements FileSystem {
     private Privilege privilege;
     private File directory;
 
-    private static boolean checkName(String name) {
+    static boolean checkName(String name) {
 	char[] chars = name.toCharArray();
 
 	for (int i=0; i<chars.length; i++) {
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,13 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in the configuration file and the JVM
+ * supports virtual threads, every TCB other than the first is backed by a
+ * virtual thread rather than a platform thread. Virtual threads are cheap to
+ * create and to block, so far more TCBs can exist at once, and a context
+ * switch does not need the operating system to wake a thread up.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +49,37 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	if (Config.getBoolean("TCB.virtualThreads", false)) {
+	    threadFactory = virtualThreadFactory();
+	    if (threadFactory == null)
+		System.out.print(" (no virtual threads)");
+	    else
+		startVirtualThreadScheduler();
+	}
+    }
+
+    /**
+     * Run one virtual thread to completion, so that the JVM sets up the
+     * scheduler that runs virtual threads, and the thread group of its
+     * carrier threads. Doing so needs permissions that Nachos threads never
+     * have, so it is done now, before the security manager is enabled.
+     */
+    private static void startVirtualThreadScheduler() {
+	Thread thread = threadFactory.newThread(new Runnable() {
+		public void run() { }
+	    });
+
+	thread.start();
+
+	while (true) {
+	    try {
+		thread.join();
+		break;
+	    }
+	    catch (InterruptedException e) {
+	    }
+	}
     }
     
     /**
@@ -66,7 +106,8 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() <
+		       (threadFactory == null ? maxThreads : maxVirtualThreads));
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +135,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -104,8 +145,13 @@ public final class TCB {
 	     * it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    /* Starting a virtual thread may make the JVM add a carrier thread
+	     * to run it, which is privileged too.
+	     */
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { javaThread.start(); }
+		});
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -207,6 +253,30 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Return a factory for virtual threads, or <tt>null</tt> if this JVM does
+     * not support them. Virtual threads are only available on Java 21 and
+     * later, so they are looked up reflectively.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+	try {
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    return (ThreadFactory)
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("factory").invoke(builder);
+	}
+	catch (Exception e) {
+	    return null;
+	}
+    }
+
+    private static Thread newJavaThread(Runnable target) {
+	if (threadFactory != null)
+	    return threadFactory.newThread(target);
+	else
+	    return new Thread(target);
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -247,6 +317,15 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads do not keep the JVM alive, so the first TCB's
+	     * platform thread must not return while any of them are left.
+	     * Nachos exits through privilege.exit() when they are done.
+	     */
+	    if (isFirstTCB && threadFactory != null) {
+		while (true)
+		    LockSupport.park(this);
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -280,29 +359,33 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * No lock is needed: <tt>running</tt> is volatile, and an
+     * <tt>unpark()</tt> that arrives before we park is remembered, so the
+     * wakeup cannot be lost. Parking also lets a virtual thread give up its
+     * carrier thread, which <tt>Object.wait()</tt> would not.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +415,12 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when TCBs are backed by virtual threads.
+     */
+    public static final int maxVirtualThreads = 65536;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,8 +443,8 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-     * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
+     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> (or
+     * <tt>maxVirtualThreads</tt>) by <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
      */
@@ -364,6 +453,12 @@ public final class TCB {
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * Creates the Java threads for new TCBs, or <tt>null</tt> to use platform
+     * threads.
+     */
+    private static ThreadFactory threadFactory = null;
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -377,7 +472,7 @@ public final class TCB {
      * <tt>null</tt>, assigned to a Java thread in <tt>start(Runnable)</tt>,
      * and set to <tt>null</tt> again in <tt>destroy()</tt>.
      */
-    private Thread javaThread = null;
+    private volatile Thread javaThread = null;
 
     /**
      * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
@@ -388,7 +483,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -272,10 +272,34 @@ public class NachosSecurityManager extends SecurityManager {
 	    }
 	}
 
+	// the JVM adds carrier threads for virtual threads on demand, in
+	// whichever thread happens to block or unpark a virtual thread, and
+	// constructing one needs whatever the JVM needs
+	if (!isPrivileged() && creatingCarrierThread())
+	    return;
+
 	// default to requiring privilege
 	verifyPrivilege(perm);
     }
 
+    /**
+     * Test whether the JVM is constructing a carrier thread to run virtual
+     * threads on.
+     */
+    private boolean creatingCarrierThread() {
+	StackTraceElement[] trace = new Throwable().getStackTrace();
+	for (int i=0; i<trace.length; i++) {
+	    if (trace[i].getClassName().equals(carrierThreadClassName) &&
+		trace[i].getMethodName().equals("<init>"))
+		return true;
+	}
+
+	return false;
+    }
+
+    private static final String carrierThreadClassName =
+	"jdk.internal.misc.CarrierThread";
+
     /**
      * Called by the <tt>java.lang.Thread</tt> constructor to determine a
      * thread group for a child thread of the current thread. The caller must
@@ -158,6 +158,27 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of ticks until the next pending interrupt becomes
+	 * due. Any number of ticks less than this can be charged with
+	 * <tt>advance()</tt> without delaying an interrupt.
+	 *
+	 * @return	the number of ticks until the next interrupt is due, or
+	 *		<tt>0</tt> if every tick must go through
+	 *		<tt>tick()</tt>.
+	 */
+	public long ticksUntilDue();
+
+	/**
+	 * Advance the simulated time by one user tick for each of the specified
+	 * number of MIPS instructions, without checking for pending
+	 * interrupts. The ticks charged must be less than
+	 * <tt>ticksUntilDue()</tt>.
+	 *
+	 * @param	numInstructions	the number of user instructions executed.
+	 */
+	public void advance(int numInstructions);
     }
 
     /**
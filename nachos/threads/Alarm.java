@@ -5,6 +5,13 @@ import nachos.machine.*;
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hashed timer wheel. Time is divided into
+ * slots of <tt>slotTicks</tt> ticks, and each sleeper is hashed into the slot
+ * covering its wake time, modulo the number of slots. A timer interrupt only
+ * visits the slots that have come due since the last interrupt, so any number
+ * of threads can sleep at once without slowing down every interrupt.
  */
 public class Alarm {
     /**
@@ -14,12 +21,9 @@ public class Alarm {
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
-
-    Semaphore binaryLock = new Semaphore(1);
-    KThread callerThread = null;
-    long wakeTime = 0;
-
     public Alarm() {
+	currentSlot = Machine.timer().getTime() / slotTicks;
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -27,58 +31,134 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
+     * periodically (approximately every 500 clock ticks). Wakes up every
+     * sleeping thread whose wake time has passed, and then causes the current
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
      */
     public void timerInterrupt() {
-      if (callerThread != null && wakeTime < Machine.timer().getTime()) {
-        callerThread.ready();
-        callerThread = null;
-        wakeTime = 0;
-        binaryLock.V();
-      }
-      KThread.yield();
+	long time = Machine.timer().getTime();
+	long lastSlot = time / slotTicks;
+
+	// visit each slot that came due since the last interrupt, at most once
+	long firstSlot = Math.max(currentSlot, lastSlot - numSlots + 1);
+	for (long slot=firstSlot; slot<=lastSlot; slot++)
+	    wakeDue((int) (slot % numSlots), time);
+
+	// the last slot may hold threads that are not due yet, so revisit it
+	currentSlot = lastSlot;
+
+	KThread.yield();
+    }
+
+    /**
+     * Put the current thread to sleep for at least <i>x</i> ticks,
+     * waking it up in the timer interrupt handler. The thread must be
+     * woken up (placed in the scheduler ready set) during the first timer
+     * interrupt where
+     *
+     * <p><blockquote>
+     * (current time) >= (WaitUntil called time)+(x)
+     * </blockquote>
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     *
+     * @see	nachos.machine.Timer#getTime()
+     */
+    public void waitUntil(long x) {
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long wakeTime = Machine.timer().getTime() + x;
+	int slot = (int) ((wakeTime / slotTicks) % numSlots);
+
+	slots[slot] = new Sleeper(KThread.currentThread(), wakeTime,
+				  slots[slot]);
+
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wake up every thread in the specified slot whose wake time is at or
+     * before the specified time. Threads hashed to the same slot on a later
+     * turn of the wheel stay asleep.
+     */
+    private void wakeDue(int slot, long time) {
+	Sleeper previous = null;
+	for (Sleeper sleeper=slots[slot]; sleeper!=null; sleeper=sleeper.next) {
+	    if (sleeper.wakeTime <= time) {
+		if (previous == null)
+		    slots[slot] = sleeper.next;
+		else
+		    previous.next = sleeper.next;
+
+		sleeper.thread.ready();
+	    }
+	    else {
+		previous = sleeper;
+	    }
+	}
     }
 
-  /**
-   * Put the current thread to sleep for at least <i>x</i> ticks,
-   * waking it up in the timer interrupt handler. The thread must be
-   * woken up (placed in the scheduler ready set) during the first timer
-   * interrupt where
-   *
-   * <p><blockquote>
-   * (current time) >= (WaitUntil called time)+(x)
-   * </blockquote>
-   *
-   * @param	x	the minimum number of clock ticks to wait.
-   *
-   * @see	nachos.machine.Timer#getTime()
-   */
-  public void waitUntil(long x) {
-    binaryLock.P();
-    wakeTime = Machine.timer().getTime() + x;
-    callerThread = KThread.currentThread();
-    boolean status = Machine.interrupt().disable();
-    KThread.sleep();
-    Machine.interrupt().restore(status);
-  }
-
-  public static void selfTest() {
-    new PingTest().run();
-  }
-
-  private static class PingTest implements Runnable{
-
-
-    @Override
-    public void run() {
-      Alarm alarm = new Alarm();
-      System.out.println("Calling alarm at " + Machine.timer().getTime() +
-          " for 1000");
-      alarm.waitUntil(1000);
-
-      System.out.println("Waken at " + Machine.timer().getTime());
+    /**
+     * Tests whether this module is working.
+     */
+    public static void selfTest() {
+	final long[] delays = { 1000, 200, 5000, 1000, 70000 };
+
+	KThread[] sleepers = new KThread[delays.length];
+	for (int i=0; i<delays.length; i++) {
+	    sleepers[i] = new KThread(new PingTest(delays[i]))
+		.setName("alarm test " + i);
+	    sleepers[i].fork();
+	}
+
+	for (int i=0; i<delays.length; i++)
+	    sleepers[i].join();
     }
-  }
+
+    private static class PingTest implements Runnable {
+	PingTest(long delay) {
+	    this.delay = delay;
+	}
+
+	public void run() {
+	    long start = Machine.timer().getTime();
+	    System.out.println("Calling alarm at " + start + " for " + delay);
+
+	    ThreadedKernel.alarm.waitUntil(delay);
+
+	    long time = Machine.timer().getTime();
+	    System.out.println("Waken at " + time);
+	    Lib.assertTrue(time >= start + delay);
+	}
+
+	private long delay;
+    }
+
+    private static class Sleeper {
+	Sleeper(KThread thread, long wakeTime, Sleeper next) {
+	    this.thread = thread;
+	    this.wakeTime = wakeTime;
+	    this.next = next;
+	}
+
+	KThread thread;
+	long wakeTime;
+	Sleeper next;
+    }
+
+    /** The number of ticks covered by each slot of the wheel. */
+    private static final int slotTicks = 128;
+    /** The number of slots in the wheel. */
+    private static final int numSlots = 256;
+
+    /** The sleeping threads, hashed by wake time. */
+    private Sleeper[] slots = new Sleeper[numSlots];
+    /** The first slot not yet known to be empty of due threads. */
+    private long currentSlot;
 }
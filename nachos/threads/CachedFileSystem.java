@@ -0,0 +1,1359 @@
+package nachos.threads;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * A file system that caches the blocks of the files of another file system in
+ * kernel memory. Select it by setting <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.threads.CachedFileSystem</tt>; it caches the file system named
+ * by <tt>CachedFileSystem.fileSystem</tt>, or the stub file system if that
+ * key is not set.
+ *
+ * <p>
+ * Files are cached in fixed-size blocks of <tt>CachedFileSystem.blockSize</tt>
+ * bytes, at most <tt>CachedFileSystem.numBlocks</tt> at a time. Blocks stay
+ * cached after a file is closed, so opening and reading the same file again,
+ * as every <tt>exec()</tt> of a program does, costs no I/O. When the cache is
+ * full, a block is evicted by <tt>CachedFileSystem.policy</tt>, which is
+ * <tt>lru</tt> or <tt>2q</tt>. 2Q keeps blocks that have only been read once
+ * in a separate, small FIFO queue, so a single scan through a large file
+ * cannot push the blocks that are used over and over out of the cache.
+ *
+ * <p>
+ * Writes are cached too. Dirty blocks are written back when they are evicted,
+ * when the last open instance of their file is closed, or when the cache is
+ * flushed, writing each run of consecutive dirty blocks with a single write.
+ *
+ * <p>
+ * Each open file watches for sequential access. While it is read
+ * sequentially, the blocks ahead of it are read in the background, by a
+ * kernel thread, in windows that double up to
+ * <tt>CachedFileSystem.readAhead</tt> blocks; the next window is started as
+ * soon as the reader reaches the last one, so the reader should rarely wait.
+ * While it is written sequentially, every
+ * <tt>CachedFileSystem.writeBehind</tt> completed blocks are written back in
+ * the background, so closing the file has little left to write. Either is
+ * disabled by setting its key to 0.
+ *
+ * <p>
+ * Every file of the underlying file system must be accessed through the
+ * cache, or the cache may return stale data.
+ */
+public class CachedFileSystem implements FileSystem {
+    /**
+     * Allocate a new cached file system.
+     */
+    public CachedFileSystem() {
+	this(cachedFileSystem(),
+	     Config.getInteger("CachedFileSystem.blockSize", 1024),
+	     Config.getInteger("CachedFileSystem.numBlocks", 64),
+	     Config.getString("CachedFileSystem.policy", "lru"),
+	     Config.getInteger("CachedFileSystem.readAhead", 8),
+	     Config.getInteger("CachedFileSystem.writeBehind", 4));
+    }
+
+    private CachedFileSystem(FileSystem fileSystem, int blockSize,
+			     int numBlocks, String policyName, int readAhead,
+			     int writeBehind) {
+	Lib.assertTrue(fileSystem != null, "no file system to cache");
+	Lib.assertTrue(blockSize > 0 && numBlocks > 0);
+
+	this.fileSystem = fileSystem;
+	this.blockSize = blockSize;
+	this.numBlocks = numBlocks;
+
+	if (policyName.equals("2q"))
+	    twoQueue = true;
+	else
+	    Lib.assertTrue(policyName.equals("lru"),
+			   "unknown cache policy " + policyName);
+
+	inQueueLimit = Math.max(1, numBlocks/4);
+	ghostLimit = Math.max(1, numBlocks/2);
+
+	// two windows are in the cache at once, and must leave room for the
+	// rest of the cache's users
+	readAheadLimit = Math.min(readAhead, numBlocks/4);
+	writeBehindLimit = writeBehind;
+    }
+
+    /**
+     * Return the file system named by <tt>CachedFileSystem.fileSystem</tt>,
+     * or the stub file system if that key is not set.
+     */
+    private static FileSystem cachedFileSystem() {
+	String fileSystemName = Config.getString("CachedFileSystem.fileSystem",
+						 null);
+	if (fileSystemName != null)
+	    return (FileSystem) Lib.constructObject(fileSystemName);
+	else
+	    return Machine.stubFileSystem();
+    }
+
+    /**
+     * Return the file system whose files are being cached.
+     *
+     * @return	the underlying file system.
+     */
+    public FileSystem getFileSystem() {
+	return fileSystem;
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	lock.acquire();
+
+	CachedFile file = files.get(name);
+
+	// a write still in progress must not land after the file is truncated
+	while (truncate && file != null && file.writing) {
+	    ioDone.sleep();
+	    file = files.get(name);
+	}
+
+	OpenFile openFile = null;
+	if (file == null || file.openCount == 0 || truncate) {
+	    openFile = fileSystem.open(name, truncate);
+
+	    if (openFile == null) {
+		if (file != null && file.openCount == 0)
+		    forget(file);
+
+		lock.release();
+		return null;
+	    }
+	}
+
+	if (file == null) {
+	    file = new CachedFile(name, openFile.length());
+	    files.put(name, file);
+	}
+	else if (file.openCount == 0 && file.length != openFile.length()) {
+	    // the file was changed behind the cache's back
+	    discardBlocks(file);
+	    file.length = openFile.length();
+	}
+
+	if (truncate) {
+	    discardBlocks(file);
+	    file.length = 0;
+	}
+
+	if (file.openFile == null)
+	    file.openFile = openFile;
+	else if (openFile != null)
+	    openFile.close();
+
+	file.openCount++;
+
+	lock.release();
+
+	return new CachedOpenFile(file);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	// open instances keep their blocks until they are closed
+	CachedFile file = files.remove(name);
+	if (file != null && file.openCount == 0)
+	    discardBlocks(file);
+
+	boolean removed = fileSystem.remove(name);
+
+	lock.release();
+
+	return removed;
+    }
+
+    /**
+     * Write every dirty block in the cache back to the underlying file
+     * system.
+     */
+    public void flush() {
+	lock.acquire();
+
+	// writing back releases the lock, and files may come and go meanwhile
+	CachedFile[] cached = files.values().toArray(new CachedFile[0]);
+	for (int i=0; i<cached.length; i++) {
+	    if (cached[i].openCount > 0)
+		writeBack(cached[i]);
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Print how often blocks were found in the cache, and how many were
+     * written back and read ahead, if the cache has been used.
+     */
+    public void printStats() {
+	if (numHits + numMisses > 0)
+	    System.out.println("Block cache: hits " + numHits
+			       + ", misses " + numMisses
+			       + ", blocks written back " + numWriteBacks
+			       + " (" + numWriteBehinds + " behind)"
+			       + ", read ahead " + numReadAheads);
+    }
+
+    private int read(CachedOpenFile openFile, int pos, byte[] buf,
+		     int offset, int length) {
+	if (pos < 0 || length < 0 || offset < 0 || offset+length > buf.length)
+	    return -1;
+
+	lock.acquire();
+
+	CachedFile file = openFile.file;
+	int end = Math.min(pos+length, file.length);
+	int amount = 0;
+
+	while (pos+amount < end) {
+	    int blockNum = (pos+amount) / blockSize;
+	    int blockOffset = (pos+amount) % blockSize;
+	    int count = Math.min(end - (pos+amount), blockSize - blockOffset);
+
+	    Block block = getBlock(file, blockNum, true);
+	    if (block == null)
+		break;
+
+	    System.arraycopy(block.data, blockOffset, buf, offset+amount,
+			     count);
+	    amount += count;
+	}
+
+	if (amount > 0)
+	    readAhead(openFile, pos, pos+amount);
+
+	lock.release();
+
+	return (amount == 0 && pos < end) ? -1 : amount;
+    }
+
+    private int write(CachedOpenFile openFile, int pos, byte[] buf,
+		      int offset, int length) {
+	if (pos < 0 || length < 0 || offset < 0 || offset+length > buf.length)
+	    return -1;
+
+	lock.acquire();
+
+	CachedFile file = openFile.file;
+	int amount = 0;
+
+	while (amount < length) {
+	    int blockNum = (pos+amount) / blockSize;
+	    int blockOffset = (pos+amount) % blockSize;
+	    int count = Math.min(length - amount, blockSize - blockOffset);
+
+	    // only read the old contents if some of them will survive
+	    boolean whole = blockOffset == 0 && count == blockSize;
+	    boolean fill = !whole && blockNum*blockSize < file.length;
+
+	    Block block = getBlock(file, blockNum, fill);
+	    if (block == null)
+		break;
+
+	    System.arraycopy(buf, offset+amount, block.data, blockOffset,
+			     count);
+	    block.dirty = true;
+	    amount += count;
+
+	    file.length = Math.max(file.length, pos+amount);
+	}
+
+	if (amount > 0)
+	    writeBehind(openFile, pos, pos+amount);
+
+	lock.release();
+
+	return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    /**
+     * Start reading the blocks after a read in the background, if the file
+     * is being read sequentially. The lock must be held.
+     *
+     * @param	openFile	the open file that was read.
+     * @param	pos	the position the read started at.
+     * @param	end	the position after the last byte read.
+     */
+    private void readAhead(CachedOpenFile openFile, int pos, int end) {
+	boolean sequential = (pos == openFile.lastEnd);
+	openFile.lastEnd = end;
+
+	if (readAheadLimit == 0)
+	    return;
+
+	if (!sequential) {
+	    openFile.window = 0;
+	    return;
+	}
+
+	CachedFile file = openFile.file;
+	int lastBlock = (end-1) / blockSize;
+
+	if (openFile.window == 0) {
+	    openFile.window = Math.min(2, readAheadLimit);
+	    openFile.markBlock = lastBlock;
+	    openFile.readAheadTo = lastBlock+1;
+	}
+
+	// wait until the reader gets into the last window before starting the
+	// next one
+	if (lastBlock < openFile.markBlock)
+	    return;
+
+	int first = Math.max(openFile.readAheadTo, lastBlock+1);
+	int count = Math.min(openFile.window,
+			     (file.length + blockSize-1) / blockSize - first);
+	if (count <= 0)
+	    return;
+
+	queueRequest(new Request(file, first, count, false));
+
+	openFile.markBlock = first;
+	openFile.readAheadTo = first + count;
+	openFile.window = Math.min(openFile.window*2, readAheadLimit);
+    }
+
+    /**
+     * Start writing back the blocks that a sequential writer has finished
+     * with, once there are enough of them. The lock must be held.
+     *
+     * @param	openFile	the open file that was written.
+     * @param	pos	the position the write started at.
+     * @param	end	the position after the last byte written.
+     */
+    private void writeBehind(CachedOpenFile openFile, int pos, int end) {
+	boolean sequential = (pos == openFile.lastEnd);
+	openFile.lastEnd = end;
+
+	if (writeBehindLimit == 0)
+	    return;
+
+	if (!sequential)
+	    openFile.writeBehindFrom = pos / blockSize;
+
+	// the block the write ended in is probably not finished yet
+	int completed = end / blockSize;
+	if (completed - openFile.writeBehindFrom < writeBehindLimit)
+	    return;
+
+	queueRequest(new Request(openFile.file, openFile.writeBehindFrom,
+				 completed - openFile.writeBehindFrom, true));
+
+	openFile.writeBehindFrom = completed;
+    }
+
+    private void close(CachedFile file) {
+	lock.acquire();
+	release(file);
+	lock.release();
+    }
+
+    /**
+     * Drop a reference to a file, from an open instance or a queued request.
+     * The lock must be held.
+     */
+    private void release(CachedFile file) {
+	Lib.assertTrue(file.openCount > 0);
+
+	// writing back releases the lock, and the file may be opened again
+	// meanwhile, so only let go of it afterwards
+	if (file.openCount == 1)
+	    writeBack(file);
+
+	file.openCount--;
+	if (file.openCount == 0) {
+	    file.openFile.close();
+	    file.openFile = null;
+
+	    // nobody can find the blocks of a file that has been removed
+	    if (file.blocks.isEmpty() || files.get(file.name) != file)
+		forget(file);
+	}
+    }
+
+    /**
+     * Return the cached copy of a block of a file, reading it from the
+     * underlying file if it is not cached. The lock must be held, and is
+     * released while reading.
+     *
+     * @param	file	the file.
+     * @param	blockNum	the block number within the file.
+     * @param	fill	<tt>false</tt> if the block will be completely
+     *			overwritten, or lies past the end of the file, so it
+     *			can be zero-filled instead of read.
+     * @return	the block, or <tt>null</tt> if it could not be read.
+     */
+    private Block getBlock(CachedFile file, int blockNum, boolean fill) {
+	Block block;
+	while (true) {
+	    block = file.blocks.get(blockNum);
+
+	    // a block being read in by someone else is a hit, once it arrives;
+	    // one being evicted is a miss, once it is gone
+	    if (block != null && block.busy) {
+		ioDone.sleep();
+		continue;
+	    }
+
+	    if (block != null) {
+		numHits++;
+		touch(block);
+		return block;
+	    }
+
+	    // finding a block may wait, so check again afterwards
+	    block = allocateBlock();
+	    if (!file.blocks.containsKey(blockNum))
+		break;
+
+	    freeBlocks.append(block);
+	}
+
+	numMisses++;
+
+	block.file = file;
+	block.blockNum = blockNum;
+	block.dirty = false;
+	file.blocks.put(blockNum, block);
+
+	int amount = 0;
+	if (fill) {
+	    int start = blockNum*blockSize;
+	    int length = Math.min(blockSize, file.length - start);
+
+	    // don't hold up the rest of the cache while reading; anyone else
+	    // who wants this block waits for it, as for a block read ahead
+	    block.busy = true;
+	    lock.release();
+	    amount = file.openFile.read(start, block.data, 0, length);
+	    lock.acquire();
+	    block.busy = false;
+
+	    ioDone.wakeAll();
+
+	    // the file may have been truncated in the meantime
+	    if (amount == -1 || file.blocks.get(blockNum) != block) {
+		if (file.blocks.get(blockNum) == block)
+		    file.blocks.remove(blockNum);
+
+		block.file = null;
+		freeBlocks.append(block);
+		return null;
+	    }
+	}
+	Arrays.fill(block.data, amount, blockSize, (byte) 0);
+
+	insert(block);
+
+	return block;
+    }
+
+    /**
+     * Add a newly loaded block to the replacement queues.
+     */
+    private void insert(Block block) {
+	if (twoQueue && ghosts.remove(block.key()))
+	    mainQueue.append(block);
+	else if (twoQueue)
+	    inQueue.append(block);
+	else
+	    mainQueue.append(block);
+    }
+
+    /**
+     * Record a hit on a cached block.
+     */
+    private void touch(Block block) {
+	// in 2Q, a block only leaves the FIFO queue by being evicted
+	if (block.list == mainQueue) {
+	    mainQueue.remove(block);
+	    mainQueue.append(block);
+	}
+    }
+
+    /**
+     * Return an unused block, evicting one if the cache is full. This may
+     * wait for the I/O thread, releasing the lock.
+     */
+    private Block allocateBlock() {
+	while (true) {
+	    if (!freeBlocks.isEmpty())
+		return freeBlocks.removeFirst();
+
+	    if (numAllocated < numBlocks) {
+		numAllocated++;
+		return new Block(blockSize);
+	    }
+
+	    Block victim = null;
+	    if (inQueue.size > inQueueLimit || mainQueue.isEmpty())
+		victim = findVictim(inQueue);
+	    if (victim == null)
+		victim = findVictim(mainQueue);
+	    if (victim == null)
+		victim = findVictim(inQueue);
+
+	    if (victim != null)
+		return evict(victim);
+
+	    // every block is being read or written in the background
+	    ioDone.sleep();
+	}
+    }
+
+    /**
+     * Return the oldest block in a queue that can be evicted now. A dirty
+     * block cannot be written back while an older copy of its file's data
+     * may still be on its way to the underlying file.
+     */
+    private Block findVictim(BlockList list) {
+	for (Block block=list.first; block!=null; block=block.next) {
+	    if (!block.dirty || !block.file.writing)
+		return block;
+	}
+
+	return null;
+    }
+
+    private Block evict(Block victim) {
+	BlockList list = victim.list;
+	list.remove(victim);
+
+	// remember it for a while, in case it is wanted again soon
+	if (list == inQueue) {
+	    ghosts.add(victim.key());
+	    if (ghosts.size() > ghostLimit) {
+		Iterator<Long> oldest = ghosts.iterator();
+		oldest.next();
+		oldest.remove();
+	    }
+	}
+
+	CachedFile file = victim.file;
+
+	// anyone who wants the block while it is written back waits for it to
+	// be gone, and then reads the copy that was written
+	if (victim.dirty) {
+	    victim.busy = true;
+	    writeBlocks(file, victim.blockNum, new Block[] { victim }, 1,
+			false);
+	    victim.busy = false;
+	}
+
+	// the file may have been truncated in the meantime
+	if (file.blocks.get(victim.blockNum) == victim)
+	    file.blocks.remove(victim.blockNum);
+	if (file.blocks.isEmpty() && file.openCount == 0)
+	    forget(file);
+
+	victim.file = null;
+	return victim;
+    }
+
+    /**
+     * Write back every dirty block of a file, writing each run of consecutive
+     * blocks with one write. The lock must be held, and is released while
+     * writing.
+     */
+    private void writeBack(CachedFile file) {
+	// start over after every write, since blocks may have been dirtied or
+	// evicted in the meantime
+	while (writeRun(file, 0, Integer.MAX_VALUE, false) != -1)
+	    ;
+    }
+
+    /**
+     * Write back the first run of consecutive dirty blocks of a file in a
+     * range of blocks, with a single write. The lock must be held, and is
+     * released while writing.
+     *
+     * @param	file	the file.
+     * @param	from	the first block of the range.
+     * @param	end	the block after the range.
+     * @param	behind	<tt>true</tt> if the I/O thread is writing behind.
+     * @return	the block after the run, or -1 if the range had no dirty
+     *		blocks.
+     */
+    private int writeRun(CachedFile file, int from, int end, boolean behind) {
+	// an older copy of the blocks must not land after this one
+	while (file.writing)
+	    ioDone.sleep();
+
+	int first = -1;
+	for (Block block : file.blocks.values()) {
+	    if (block.dirty && block.blockNum >= from && block.blockNum < end &&
+		(first == -1 || block.blockNum < first))
+		first = block.blockNum;
+	}
+
+	if (first == -1)
+	    return -1;
+
+	int count = 1;
+	while (first+count < end) {
+	    Block block = file.blocks.get(first+count);
+	    if (block == null || !block.dirty)
+		break;
+	    count++;
+	}
+
+	Block[] run = new Block[count];
+	for (int i=0; i<count; i++)
+	    run[i] = file.blocks.get(first+i);
+
+	writeBlocks(file, first, run, count, behind);
+
+	return first+count;
+    }
+
+    /**
+     * Write consecutive blocks of a file with a single write, leaving out any
+     * part past the end of the file. The blocks are copied and marked clean
+     * first, so they can be read and written while the write is in progress.
+     * The lock must be held, and is released while writing.
+     */
+    private void writeBlocks(CachedFile file, int firstBlock, Block[] blocks,
+			     int count, boolean behind) {
+	Lib.assertTrue(file.openFile != null && !file.writing);
+
+	int start = firstBlock*blockSize;
+	int length = Math.min(count*blockSize, file.length - start);
+
+	byte[] buffer = copyBlocks(blocks, count);
+	for (int i=0; i<count; i++)
+	    blocks[i].dirty = false;
+
+	if (length <= 0)
+	    return;
+
+	Lib.debug(dbgCache, "writing " + (behind ? "behind " : "back ") + count
+		  + " blocks of " + file.name + " from block " + firstBlock);
+
+	file.writing = true;
+
+	lock.release();
+	file.openFile.write(start, buffer, 0, length);
+	lock.acquire();
+
+	file.writing = false;
+
+	numWriteBacks += count;
+	if (behind)
+	    numWriteBehinds += count;
+
+	ioDone.wakeAll();
+    }
+
+    private byte[] copyBlocks(Block[] blocks, int count) {
+	byte[] buffer = new byte[count*blockSize];
+	for (int i=0; i<count; i++)
+	    System.arraycopy(blocks[i].data, 0, buffer, i*blockSize, blockSize);
+
+	return buffer;
+    }
+
+    /**
+     * Drop every cached block of a file, without writing any of them back.
+     * Blocks still being read or evicted are freed by whoever is reading or
+     * evicting them.
+     */
+    private void discardBlocks(CachedFile file) {
+	for (Block block : file.blocks.values()) {
+	    if (block.busy)
+		continue;
+
+	    block.list.remove(block);
+	    block.file = null;
+	    freeBlocks.append(block);
+	}
+
+	file.blocks.clear();
+    }
+
+    /**
+     * Stop tracking a file that is neither open nor cached.
+     */
+    private void forget(CachedFile file) {
+	discardBlocks(file);
+
+	if (files.get(file.name) == file)
+	    files.remove(file.name);
+    }
+
+    /**
+     * Queue a request for the I/O thread, starting the thread if this is the
+     * first request. The file is kept open until the request is done. The
+     * lock must be held.
+     */
+    private void queueRequest(Request request) {
+	request.file.openCount++;
+	requests.add(request);
+
+	if (ioThread == null) {
+	    ioThread = new KThread(new Runnable() {
+		    public void run() { serveRequests(); }
+		}).setName("block cache I/O");
+	    ioThread.fork();
+	}
+
+	workAvailable.wake();
+    }
+
+    private void serveRequests() {
+	lock.acquire();
+
+	while (true) {
+	    while (requests.isEmpty())
+		workAvailable.sleep();
+
+	    Request request = requests.removeFirst();
+	    if (request.write)
+		writeBlocksBehind(request);
+	    else
+		readBlocksAhead(request);
+
+	    release(request.file);
+	}
+    }
+
+    /**
+     * Read the blocks of a read-ahead request that are not already cached,
+     * each run of them with a single read. The lock must be held, and is
+     * released while reading.
+     */
+    private void readBlocksAhead(Request request) {
+	CachedFile file = request.file;
+	int end = request.firstBlock + request.count;
+
+	int blockNum = request.firstBlock;
+	while (blockNum < end && blockNum*blockSize < file.length) {
+	    if (file.blocks.containsKey(blockNum)) {
+		blockNum++;
+		continue;
+	    }
+
+	    int first = blockNum;
+	    Block[] run = new Block[end - first];
+	    int count = 0;
+
+	    while (blockNum < end && blockNum*blockSize < file.length &&
+		   !file.blocks.containsKey(blockNum)) {
+		Block block = allocateBlock();
+		if (file.blocks.containsKey(blockNum)) {
+		    freeBlocks.append(block);
+		    break;
+		}
+
+		block.file = file;
+		block.blockNum = blockNum;
+		block.dirty = false;
+		block.busy = true;
+		file.blocks.put(blockNum, block);
+
+		run[count++] = block;
+		blockNum++;
+	    }
+
+	    if (count > 0)
+		loadBlocks(file, first, run, count);
+	}
+    }
+
+    private void loadBlocks(CachedFile file, int firstBlock, Block[] blocks,
+			    int count) {
+	int start = firstBlock*blockSize;
+	int length = Math.min(count*blockSize, file.length - start);
+	byte[] buffer = new byte[count*blockSize];
+
+	Lib.debug(dbgCache, "reading ahead " + count + " blocks of "
+		  + file.name + " from block " + firstBlock);
+
+	lock.release();
+	int amount = file.openFile.read(start, buffer, 0, length);
+	lock.acquire();
+
+	for (int i=0; i<count; i++) {
+	    Block block = blocks[i];
+	    block.busy = false;
+
+	    // the file may have been truncated in the meantime
+	    if (amount == -1 || file.blocks.get(block.blockNum) != block) {
+		if (file.blocks.get(block.blockNum) == block)
+		    file.blocks.remove(block.blockNum);
+
+		block.file = null;
+		freeBlocks.append(block);
+		continue;
+	    }
+
+	    int valid = Math.max(0, Math.min(blockSize, amount - i*blockSize));
+	    System.arraycopy(buffer, i*blockSize, block.data, 0, valid);
+	    Arrays.fill(block.data, valid, blockSize, (byte) 0);
+
+	    insert(block);
+	    numReadAheads++;
+	}
+
+	ioDone.wakeAll();
+    }
+
+    /**
+     * Write the dirty blocks of a write-behind request, each run of them with
+     * a single write. The lock must be held, and is released while writing.
+     */
+    private void writeBlocksBehind(Request request) {
+	int end = request.firstBlock + request.count;
+
+	int blockNum = request.firstBlock;
+	while (blockNum != -1)
+	    blockNum = writeRun(request.file, blockNum, end, true);
+    }
+
+    /**
+     * Test the cache over a file system kept in memory: that data gets
+     * through it intact, that LRU and 2Q keep the blocks they should, that
+     * blocks are read ahead and written behind, and that blocks being read
+     * or written back are not lost or returned stale when their file is
+     * truncated, removed, or wanted again.
+     */
+    public static void selfTest() {
+	testRoundTrip();
+	testPolicy("lru", 0);
+	testPolicy("2q", 2);
+	testReadAhead();
+	testWriteBehind();
+	testTruncateWhileLoading();
+	testRemoveWhileLoading();
+	testEvictWhileWanted();
+    }
+
+    private static void testRoundTrip() {
+	MemoryFileSystem memory = new MemoryFileSystem();
+	CachedFileSystem cache = new CachedFileSystem(memory, 64, 8, "lru",
+						      0, 0);
+
+	// four whole blocks and part of a fifth, none of which need reading
+	byte[] data = pattern(4*64 + 10, 1);
+	OpenFile file = cache.open("a", true);
+	Lib.assertTrue(file.write(0, data, 0, data.length) == data.length);
+	checkContents(file, data);
+	Lib.assertTrue(cache.numMisses == 5 && cache.numHits == 5);
+	Lib.assertTrue(memory.numWrites == 0);
+
+	// closing writes the blocks back with one write
+	file.close();
+	Lib.assertTrue(memory.numWrites == 1 && cache.numWriteBacks == 5);
+	checkContents(memory.open("a", false), data);
+
+	// the blocks stay cached after the file is closed
+	int numReads = memory.numReads;
+	file = cache.open("a", false);
+	checkContents(file, data);
+	Lib.assertTrue(cache.numMisses == 5 && cache.numHits == 10);
+	Lib.assertTrue(memory.numReads == numReads);
+	file.close();
+    }
+
+    /**
+     * Read two hot blocks, and then scan through twelve blocks that are
+     * read only once, in an eight block cache. 2Q keeps the hot blocks,
+     * since they were read again soon after being evicted, but LRU does
+     * not.
+     */
+    private static void testPolicy(String policy, int hotHits) {
+	MemoryFileSystem memory = new MemoryFileSystem();
+	memory.create("hot", pattern(2*64, 2));
+	memory.create("scan", pattern(20*64, 3));
+	CachedFileSystem cache = new CachedFileSystem(memory, 64, 8, policy,
+						      0, 0);
+
+	OpenFile hot = cache.open("hot", false);
+	OpenFile scan = cache.open("scan", false);
+
+	readBlocks(hot, 0, 2);
+	readBlocks(scan, 0, 8);
+	readBlocks(hot, 0, 2);
+	Lib.assertTrue(cache.numHits == 0 && cache.numMisses == 12);
+
+	readBlocks(scan, 8, 12);
+	int numHits = cache.numHits;
+	readBlocks(hot, 0, 2);
+	Lib.assertTrue(cache.numHits - numHits == hotHits);
+
+	hot.close();
+	scan.close();
+    }
+
+    private static void testReadAhead() {
+	MemoryFileSystem memory = new MemoryFileSystem();
+	memory.create("seq", pattern(32*64, 4));
+	CachedFileSystem cache = new CachedFileSystem(memory, 64, 32, "lru",
+						      8, 0);
+
+	// a sequential reader that does something else between reads should
+	// find most blocks already there, read several at a time
+	OpenFile file = cache.open("seq", false);
+	for (int i=0; i<32; i++) {
+	    readBlocks(file, i, 1);
+	    KThread.yield();
+	}
+	Lib.assertTrue(cache.numHits + cache.numMisses == 32);
+	Lib.assertTrue(cache.numHits >= 24 && cache.numReadAheads >= 24);
+	Lib.assertTrue(memory.numReads <= 10);
+	checkContents(file, memory.contents("seq"));
+	file.close();
+    }
+
+    private static void testWriteBehind() {
+	MemoryFileSystem memory = new MemoryFileSystem();
+	CachedFileSystem cache = new CachedFileSystem(memory, 64, 32, "lru",
+						      0, 4);
+
+	byte[] data = pattern(16*64, 5);
+	OpenFile file = cache.open("seq", true);
+	for (int i=0; i<16; i++)
+	    Lib.assertTrue(file.write(i*64, data, i*64, 64) == 64);
+
+	// every four blocks were queued for the I/O thread
+	for (int i=0; i<100 && cache.numWriteBehinds < 16; i++)
+	    KThread.yield();
+	Lib.assertTrue(cache.numWriteBehinds == 16 && memory.numWrites == 4);
+	Lib.assertTrue(Arrays.equals(memory.contents("seq"), data));
+
+	// so closing has nothing left to write
+	file.close();
+	Lib.assertTrue(cache.numWriteBacks == 16 && memory.numWrites == 4);
+    }
+
+    private static void testTruncateWhileLoading() {
+	final MemoryFileSystem memory = new MemoryFileSystem();
+	memory.create("t", pattern(64, 6));
+	CachedFileSystem cache = new CachedFileSystem(memory, 64, 4, "lru",
+						      0, 0);
+
+	final OpenFile file = cache.open("t", false);
+	final int[] amount = new int[1];
+
+	memory.stalled = true;
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    amount[0] = file.read(0, new byte[64], 0, 64);
+		}
+	    }).setName("cache test reader");
+	reader.fork();
+	while (memory.numReads == 0)
+	    KThread.yield();
+
+	OpenFile truncated = cache.open("t", true);
+	memory.stalled = false;
+	reader.join();
+
+	// the old contents are neither returned nor left in the cache
+	Lib.assertTrue(amount[0] <= 0);
+	Lib.assertTrue(cache.freeBlocks.size == cache.numAllocated);
+
+	byte[] data = pattern(10, 7);
+	Lib.assertTrue(truncated.write(0, data, 0, data.length) == data.length);
+	checkContents(file, data);
+
+	truncated.close();
+	file.close();
+	Lib.assertTrue(Arrays.equals(memory.contents("t"), data));
+    }
+
+    private static void testRemoveWhileLoading() {
+	final MemoryFileSystem memory = new MemoryFileSystem();
+	final byte[] data = pattern(2*64, 8);
+	memory.create("r", data);
+	CachedFileSystem cache = new CachedFileSystem(memory, 64, 4, "lru",
+						      0, 0);
+
+	final OpenFile file = cache.open("r", false);
+	final byte[] buffer = new byte[data.length];
+	final int[] amount = new int[1];
+
+	memory.stalled = true;
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    amount[0] = file.read(0, buffer, 0, buffer.length);
+		}
+	    }).setName("cache test reader");
+	reader.fork();
+	while (memory.numReads == 0)
+	    KThread.yield();
+
+	Lib.assertTrue(cache.remove("r"));
+	Lib.assertTrue(cache.open("r", false) == null);
+	memory.stalled = false;
+	reader.join();
+
+	// the open instance can still read the file, until it is closed
+	Lib.assertTrue(amount[0] == data.length && Arrays.equals(buffer, data));
+	file.close();
+	Lib.assertTrue(cache.files.isEmpty());
+	Lib.assertTrue(cache.freeBlocks.size == cache.numAllocated);
+    }
+
+    /**
+     * In a one block cache, read a block while the dirty block before it is
+     * being written back to make room, and write to that one meanwhile.
+     */
+    private static void testEvictWhileWanted() {
+	final MemoryFileSystem memory = new MemoryFileSystem();
+	final byte[] data = pattern(2*64, 9);
+	memory.create("e", data);
+	CachedFileSystem cache = new CachedFileSystem(memory, 64, 1, "lru",
+						      0, 0);
+
+	final OpenFile file = cache.open("e", false);
+	final byte[] block0 = pattern(64, 10);
+	Lib.assertTrue(file.write(0, block0, 0, 64) == 64);
+
+	final byte[] buffer1 = new byte[64];
+
+	memory.stalled = true;
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(file.read(64, buffer1, 0, 64) == 64);
+		}
+	    }).setName("cache test reader");
+	reader.fork();
+	while (memory.numWrites == 0)
+	    KThread.yield();
+
+	// the write must wait for the block to be written back and evicted,
+	// and then read it back in, rather than change the evicted copy
+	final byte[] update = pattern(10, 11);
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    Lib.assertTrue(file.write(5, update, 0, 10) == 10);
+		}
+	    }).setName("cache test writer");
+	writer.fork();
+	for (int i=0; i<10; i++)
+	    KThread.yield();
+
+	memory.stalled = false;
+	reader.join();
+	writer.join();
+
+	Lib.assertTrue(Arrays.equals(buffer1,
+				     Arrays.copyOfRange(data, 64, 128)));
+	file.close();
+
+	System.arraycopy(update, 0, block0, 5, 10);
+	System.arraycopy(block0, 0, data, 0, 64);
+	Lib.assertTrue(Arrays.equals(memory.contents("e"), data));
+    }
+
+    private static void readBlocks(OpenFile file, int first, int count) {
+	byte[] buffer = new byte[64];
+	for (int i=first; i<first+count; i++)
+	    Lib.assertTrue(file.read(i*64, buffer, 0, 64) == 64);
+    }
+
+    private static void checkContents(OpenFile file, byte[] data) {
+	byte[] buffer = new byte[data.length+1];
+	Lib.assertTrue(file.read(0, buffer, 0, buffer.length) == data.length);
+	Lib.assertTrue(Arrays.equals(Arrays.copyOf(buffer, data.length), data));
+    }
+
+    private static byte[] pattern(int length, int seed) {
+	byte[] data = new byte[length];
+	for (int i=0; i<length; i++)
+	    data[i] = (byte) (i*seed + i/251 + 1);
+
+	return data;
+    }
+
+    /**
+     * A file system kept in memory, for testing. It counts the reads and
+     * writes made to it, and yields in each of them, as if it were waiting
+     * for a disk, until <tt>stalled</tt> is cleared.
+     */
+    private static class MemoryFileSystem implements FileSystem {
+	public OpenFile open(String name, boolean truncate) {
+	    MemoryFile file = files.get(name);
+	    if (file == null) {
+		if (!truncate)
+		    return null;
+
+		file = new MemoryFile();
+		files.put(name, file);
+	    }
+	    else if (truncate) {
+		file.length = 0;
+	    }
+
+	    return new MemoryOpenFile(name, file);
+	}
+
+	public boolean remove(String name) {
+	    return files.remove(name) != null;
+	}
+
+	void create(String name, byte[] data) {
+	    OpenFile file = open(name, true);
+	    file.write(0, data, 0, data.length);
+	    file.close();
+	    numWrites = 0;
+	}
+
+	byte[] contents(String name) {
+	    MemoryFile file = files.get(name);
+	    return Arrays.copyOf(file.data, file.length);
+	}
+
+	private class MemoryOpenFile extends OpenFileWithPosition {
+	    MemoryOpenFile(String name, MemoryFile file) {
+		super(MemoryFileSystem.this, name);
+
+		this.file = file;
+	    }
+
+	    public int read(int pos, byte[] buf, int offset, int length) {
+		numReads++;
+		do {
+		    KThread.yield();
+		} while (stalled);
+
+		int amount = Math.max(0, Math.min(length, file.length - pos));
+		System.arraycopy(file.data, pos, buf, offset, amount);
+		return amount;
+	    }
+
+	    public int write(int pos, byte[] buf, int offset, int length) {
+		numWrites++;
+		do {
+		    KThread.yield();
+		} while (stalled);
+
+		if (pos+length > file.data.length)
+		    file.data = Arrays.copyOf(file.data, pos+length);
+		if (pos > file.length)
+		    Arrays.fill(file.data, file.length, pos, (byte) 0);
+
+		System.arraycopy(buf, offset, file.data, pos, length);
+		file.length = Math.max(file.length, pos+length);
+		return length;
+	    }
+
+	    public int length() {
+		return file.length;
+	    }
+
+	    private MemoryFile file;
+	}
+
+	boolean stalled = false;
+	int numReads = 0, numWrites = 0;
+	private HashMap<String, MemoryFile> files =
+	    new HashMap<String, MemoryFile>();
+    }
+
+    private static class MemoryFile {
+	byte[] data = new byte[0];
+	int length = 0;
+    }
+
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(CachedFile file) {
+	    super(CachedFileSystem.this, file.name);
+
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open)
+		return -1;
+
+	    return CachedFileSystem.this.read(this, pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open)
+		return -1;
+
+	    return CachedFileSystem.this.write(this, pos, buf, offset, length);
+	}
+
+	public int length() {
+	    return open ? file.length : -1;
+	}
+
+	public void close() {
+	    if (open) {
+		open = false;
+		CachedFileSystem.this.close(file);
+	    }
+	}
+
+	private CachedFile file;
+	private boolean open = true;
+
+	/** Where the last read or write ended; the next is sequential if it
+	    starts here. */
+	private int lastEnd = 0;
+	/** The size of the next read-ahead window, or 0 if not reading
+	    sequentially. */
+	private int window = 0;
+	/** The first block of the last read-ahead window. */
+	private int markBlock;
+	/** The block after the last read-ahead window. */
+	private int readAheadTo;
+	/** The first block that has not been queued for write-behind. */
+	private int writeBehindFrom = 0;
+    }
+
+    /** A file with open instances, cached blocks, or queued requests. */
+    private class CachedFile {
+	CachedFile(String name, int length) {
+	    this.name = name;
+	    this.length = length;
+	    id = nextFileId++;
+	}
+
+	final String name;
+	/** Distinguishes this file from a file later created by this name. */
+	final int id;
+	/** The length of the file, including writes not yet written back. */
+	int length;
+	/** The number of open instances of the file and queued requests. */
+	int openCount = 0;
+	/** The underlying file, if the file is open. */
+	OpenFile openFile = null;
+	/** The cached blocks of the file, by block number. */
+	HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+	/** Set while some of the file's blocks are being written back. */
+	boolean writing = false;
+    }
+
+    /** A cached block of a file. */
+    private static class Block {
+	Block(int blockSize) {
+	    data = new byte[blockSize];
+	}
+
+	long key() {
+	    return ((long) file.id << 32) | blockNum;
+	}
+
+	final byte[] data;
+	CachedFile file = null;
+	int blockNum;
+	boolean dirty = false;
+	/** Set while the block is being read from the underlying file, or
+	    written back to it before being evicted. */
+	boolean busy = false;
+
+	/** The list the block is in, and its neighbors in that list. */
+	BlockList list = null;
+	Block prev = null, next = null;
+    }
+
+    /** A doubly-linked list of blocks, oldest first. */
+    private static class BlockList {
+	boolean isEmpty() {
+	    return size == 0;
+	}
+
+	void append(Block block) {
+	    Lib.assertTrue(block.list == null);
+
+	    block.list = this;
+	    block.prev = last;
+	    block.next = null;
+	    if (last != null)
+		last.next = block;
+	    else
+		first = block;
+	    last = block;
+	    size++;
+	}
+
+	void remove(Block block) {
+	    Lib.assertTrue(block.list == this);
+
+	    if (block.prev != null)
+		block.prev.next = block.next;
+	    else
+		first = block.next;
+	    if (block.next != null)
+		block.next.prev = block.prev;
+	    else
+		last = block.prev;
+
+	    block.list = null;
+	    block.prev = block.next = null;
+	    size--;
+	}
+
+	Block removeFirst() {
+	    Block block = first;
+	    remove(block);
+	    return block;
+	}
+
+	Block first = null, last = null;
+	int size = 0;
+    }
+
+    /** A run of blocks for the I/O thread to read ahead or write behind. */
+    private static class Request {
+	Request(CachedFile file, int firstBlock, int count, boolean write) {
+	    this.file = file;
+	    this.firstBlock = firstBlock;
+	    this.count = count;
+	    this.write = write;
+	}
+
+	final CachedFile file;
+	final int firstBlock, count;
+	final boolean write;
+    }
+
+    private FileSystem fileSystem;
+    private int blockSize, numBlocks;
+    private boolean twoQueue = false;
+    private int readAheadLimit, writeBehindLimit;
+
+    private Lock lock = new Lock();
+    /** Signalled whenever blocks have been read in or written back. */
+    private Condition2 ioDone = new Condition2(lock);
+    /** The files with open instances or cached blocks, by name. */
+    private HashMap<String, CachedFile> files =
+	new HashMap<String, CachedFile>();
+    private int nextFileId = 0;
+
+    /** The number of blocks that have been allocated, at most numBlocks. */
+    private int numAllocated = 0;
+    private BlockList freeBlocks = new BlockList();
+    /** With LRU, every cached block; with 2Q, those hit more than once. */
+    private BlockList mainQueue = new BlockList();
+    /** With 2Q, the blocks read only once, in FIFO order. */
+    private BlockList inQueue = new BlockList();
+    /** With 2Q, the keys of blocks recently evicted from inQueue. */
+    private LinkedHashSet<Long> ghosts = new LinkedHashSet<Long>();
+    private int inQueueLimit, ghostLimit;
+
+    /** The thread that reads ahead and writes behind, once started. */
+    private KThread ioThread = null;
+    private LinkedList<Request> requests = new LinkedList<Request>();
+    private Condition2 workAvailable = new Condition2(lock);
+
+    /** The number of blocks found in the cache, and not found. */
+    int numHits = 0, numMisses = 0;
+    /** The number of dirty blocks written back, and of those, behind. */
+    int numWriteBacks = 0, numWriteBehinds = 0;
+    /** The number of blocks read ahead. */
+    int numReadAheads = 0;
+
+    private static final char dbgCache = 'f';
+}
@@ -475,6 +475,40 @@ public class KThread {
 //		Communicator.selfTest();
 	}
 
+	/**
+	 * Measure the cost of a context switch. Two threads yield to each other
+	 * back and forth, and the average wall-clock time of each switch is
+	 * printed.
+	 */
+	public static void benchmark() {
+		final int numYields = 20000;
+
+		KThread other = new KThread(new YieldLoop(numYields))
+				.setName("yield benchmark");
+
+		long start = System.nanoTime();
+		other.fork();
+		new YieldLoop(numYields).run();
+		other.join();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("yield ping-pong: " + elapsed / (2 * numYields)
+				+ " ns per context switch");
+	}
+
+	private static class YieldLoop implements Runnable {
+		YieldLoop(int numYields) {
+			this.numYields = numYields;
+		}
+
+		public void run() {
+			for (int i=0; i<numYields; i++)
+				KThread.yield();
+		}
+
+		private int numYields;
+	}
+
 	private static final char dbgThread = 't';
 
 	/**
@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -42,7 +39,275 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum)
+	    return false;
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum)
+	    return false;
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Measure the cost of scheduling with a lottery. For several numbers of
+     * ready threads, repeatedly draw a thread from a lottery queue and put it
+     * back, and print the average time of each draw. The cost should grow
+     * only logarithmically with the number of threads.
+     */
+    public static void benchmark() {
+	final int numDraws = 200000;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int numThreads=10; numThreads<=10000; numThreads*=10) {
+	    LotteryScheduler scheduler = new LotteryScheduler();
+	    ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	    for (int i=0; i<numThreads; i++) {
+		KThread thread = new KThread();
+		scheduler.setPriority(thread, 1 + Lib.random(100));
+		queue.waitForAccess(thread);
+	    }
+
+	    long start = System.nanoTime();
+	    for (int i=0; i<numDraws; i++)
+		queue.waitForAccess(queue.nextThread());
+	    long elapsed = System.nanoTime() - start;
+
+	    System.out.println("lottery: " + numThreads + " ready threads, "
+			       + elapsed/numDraws + " ns per draw");
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses threads by lottery.
+     *
+     * <p>
+     * Each waiting thread occupies a slot in a Fenwick tree (binary indexed
+     * tree) of effective ticket counts. Any prefix sum of tickets can be
+     * found in <i>O(log n)</i> time, so a winning ticket can be mapped to
+     * its holder, and a waiter's ticket count can be changed, without
+     * scanning all the waiters.
+     */
+    protected class LotteryQueue extends PriorityQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads. Each call holds a new
+	 * lottery, so consecutive calls may return different threads.
+	 *
+	 * @return	the winner, or <tt>null</tt> if no threads are waiting.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long winningTicket = (long) (Lib.random() * totalTickets);
+	    if (winningTicket >= totalTickets)
+		winningTicket = totalTickets - 1;
+
+	    // find the first slot whose prefix sum exceeds the winning ticket
+	    int slot = 0;
+	    for (int step=capacity; step>0; step/=2) {
+		if (slot+step <= capacity && tree[slot+step] <= winningTicket) {
+		    slot += step;
+		    winningTicket -= tree[slot];
+		}
+	    }
+
+	    return states[slot];
+	}
+
+	/**
+	 * Return the total number of tickets held by the waiting threads,
+	 * saturated to fit in an <tt>int</tt>.
+	 *
+	 * @return	the number of tickets donated by this queue.
+	 */
+	protected int getDonatedPriority() {
+	    return (int) Math.min(totalTickets, Integer.MAX_VALUE);
+	}
+	
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<capacity; i++) {
+		if (states[i] != null)
+		    System.out.print(states[i].thread + " ");
+	    }
+	}
+
+	void add(ThreadState state) {
+	    if (numFreeSlots == 0)
+		grow();
+
+	    int slot = freeSlots[--numFreeSlots];
+	    ((LotteryState) state).slot = slot;
+	    states[slot] = state;
+	    size++;
+
+	    setTickets(slot, state.effectivePriority);
+	}
+
+	void remove(ThreadState state) {
+	    int slot = ((LotteryState) state).slot;
+	    Lib.assertTrue(states[slot] == state);
+
+	    setTickets(slot, 0);
+
+	    ((LotteryState) state).slot = -1;
+	    states[slot] = null;
+	    size--;
+	    freeSlots[numFreeSlots++] = slot;
+	}
+
+	void reposition(ThreadState state) {
+	    setTickets(((LotteryState) state).slot, state.effectivePriority);
+	}
+
+	private void setTickets(int slot, long newTickets) {
+	    long delta = newTickets - tickets[slot];
+	    if (delta == 0)
+		return;
+
+	    tickets[slot] = newTickets;
+	    totalTickets += delta;
+	    for (int i=slot+1; i<=capacity; i+=(i & -i))
+		tree[i] += delta;
+
+	    donationChanged();
+	}
+
+	private void grow() {
+	    int newCapacity = (capacity == 0) ? 8 : capacity*2;
+
+	    ThreadState[] newStates = new ThreadState[newCapacity];
+	    long[] newTickets = new long[newCapacity];
+	    System.arraycopy(states, 0, newStates, 0, capacity);
+	    System.arraycopy(tickets, 0, newTickets, 0, capacity);
+
+	    // rebuild the tree in linear time
+	    long[] newTree = new long[newCapacity+1];
+	    for (int i=1; i<=newCapacity; i++) {
+		newTree[i] += newTickets[i-1];
+		int parent = i + (i & -i);
+		if (parent <= newCapacity)
+		    newTree[parent] += newTree[i];
+	    }
+
+	    int[] newFreeSlots = new int[newCapacity];
+	    for (int slot=newCapacity-1; slot>=capacity; slot--)
+		newFreeSlots[numFreeSlots++] = slot;
+
+	    capacity = newCapacity;
+	    states = newStates;
+	    tickets = newTickets;
+	    tree = newTree;
+	    freeSlots = newFreeSlots;
+	}
+
+	/** The number of slots; always a power of two. */
+	private int capacity = 0;
+	private int size = 0;
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private ThreadState[] states = new ThreadState[0];
+	/** The effective tickets of the thread in each slot. */
+	private long[] tickets = new long[0];
+	/** The Fenwick tree over <tt>tickets</tt>, indexed from 1. */
+	private long[] tree = new long[1];
+	private long totalTickets = 0;
+	private int[] freeSlots = new int[0];
+	private int numFreeSlots = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. The priority
+     * of a thread is its number of tickets, and its effective priority adds
+     * the tickets of every thread waiting on the queues it owns.
+     */
+    protected class LotteryState extends ThreadState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    super(thread);
+	}
+
+	protected int computeEffectivePriority() {
+	    long tickets = priority;
+	    for (PriorityQueue queue : ownedQueues)
+		tickets += queue.getDonatedPriority();
+
+	    return (int) Math.min(tickets, Integer.MAX_VALUE);
+	}
+
+	/** The slot of this thread in the lottery queue it waits on. */
+	private int slot = -1;
     }
 }
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -124,6 +122,13 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in a binary heap ordered by effective
+     * priority, and then by the time they started waiting. Each thread
+     * records its index in the heap, so a waiting thread whose effective
+     * priority changes can be moved to its new place in <i>O(log n)</i>
+     * time.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +147,17 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(next);
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +168,149 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (size == 0)
+		return null;
+
+	    return heap[0];
+	}
+
+	/**
+	 * Return the highest effective priority of any thread waiting on this
+	 * queue, or <tt>priorityMinimum</tt> if no threads are waiting. This is
+	 * the priority this queue donates to its owner.
+	 *
+	 * @return	the priority donated by this queue.
+	 */
+	protected int getDonatedPriority() {
+	    if (size == 0)
+		return priorityMinimum;
+
+	    return heap[0].effectivePriority;
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + " ");
+	}
+
+	/**
+	 * Give this queue a new owner, taking it away from the old one. Only
+	 * queues that transfer priority keep track of their owner.
+	 */
+	void setOwner(ThreadState newOwner) {
+	    if (!transferPriority)
+		return;
+
+	    ThreadState oldOwner = owner;
+	    owner = newOwner;
+
+	    if (oldOwner != null) {
+		oldOwner.ownedQueues.remove(this);
+		oldOwner.updateEffectivePriority();
+	    }
+
+	    if (newOwner != null) {
+		newOwner.ownedQueues.add(this);
+		newOwner.updateEffectivePriority();
+	    }
+	}
+
+	/**
+	 * Called after the effective priority of a thread waiting on this
+	 * queue, or the priority donated to the owner of this queue, may have
+	 * changed.
+	 */
+	void donationChanged() {
+	    if (transferPriority && owner != null)
+		owner.updateEffectivePriority();
+	}
+
+	void add(ThreadState state) {
+	    if (size == heap.length) {
+		ThreadState[] newHeap = new ThreadState[size*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    state.heapIndex = size++;
+	    heap[state.heapIndex] = state;
+	    siftUp(state.heapIndex);
+
+	    donationChanged();
+	}
+
+	void remove(ThreadState state) {
+	    int i = state.heapIndex;
+	    Lib.assertTrue(i < size && heap[i] == state);
+
+	    state.heapIndex = -1;
+	    size--;
+	    if (i != size) {
+		place(heap[size], i);
+		heap[size] = null;
+		siftUp(i);
+		siftDown(i);
+	    }
+	    else {
+		heap[size] = null;
+	    }
+
+	    donationChanged();
+	}
+
+	/**
+	 * Move a waiting thread to the right place in the heap after its
+	 * effective priority changed.
+	 */
+	void reposition(ThreadState state) {
+	    siftUp(state.heapIndex);
+	    siftDown(state.heapIndex);
+
+	    donationChanged();
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    if (a.effectivePriority != b.effectivePriority)
+		return a.effectivePriority > b.effectivePriority;
+	    else
+		return a.waitTime < b.waitTime;
+	}
+
+	private void place(ThreadState state, int i) {
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		place(heap[parent], i);
+		i = parent;
+	    }
+	    place(state, i);
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+
+		place(heap[child], i);
+		i = child;
+	    }
+	    place(state, i);
 	}
 
 	/**
@@ -168,6 +318,11 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that has access, if this queue transfers priority. */
+	private ThreadState owner = null;
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
     }
 
     /**
@@ -175,6 +330,13 @@ public class PriorityScheduler extends Scheduler {
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * <p>
+     * The effective priority is cached. Whenever it might change, only the
+     * threads along the chain of donations from this thread (the owner of
+     * the queue it waits on, the owner of the queue that thread waits on,
+     * and so on) are updated, and the update stops as soon as a thread's
+     * effective priority does not change.
+     *
      * @see	nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -205,8 +367,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +381,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +397,11 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitTime = numWaits++;
+	    waitQueue.add(this);
 	}
 
 	/**
@@ -250,12 +415,61 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (this.waitQueue == waitQueue)
+		this.waitQueue = null;
+
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Recompute the effective priority of the associated thread, and if it
+	 * changed, pass the change on to the queue it is waiting on.
+	 */
+	void updateEffectivePriority() {
+	    int newPriority = computeEffectivePriority();
+	    if (newPriority == effectivePriority)
+		return;
+
+	    effectivePriority = newPriority;
+
+	    if (waitQueue != null)
+		waitQueue.reposition(this);
+	}
+
+	/**
+	 * Compute the effective priority of the associated thread from its
+	 * priority and the priorities donated by the queues it owns.
+	 *
+	 * @return	the effective priority of the associated thread.
+	 */
+	protected int computeEffectivePriority() {
+	    int newPriority = priority;
+	    for (PriorityQueue queue : ownedQueues)
+		newPriority = Math.max(newPriority, queue.getDonatedPriority());
+
+	    return newPriority;
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queue the associated thread is waiting on, if any. */
+	private PriorityQueue waitQueue = null;
+	/** The position of this thread in <tt>waitQueue</tt>'s heap. */
+	private int heapIndex = -1;
+	/** When this thread started waiting, used to break ties. */
+	private long waitTime;
+	/** The priority-transferring queues this thread has access to. */
+	protected LinkedList<PriorityQueue> ownedQueues =
+	    new LinkedList<PriorityQueue>();
     }
+
+    /** The number of times any thread has started waiting on a queue. */
+    private long numWaits = 0;
 }
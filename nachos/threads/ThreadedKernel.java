@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -41,17 +42,30 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>Alarm</tt>, <tt>CachedFileSystem</tt>, and
+     * <tt>ElevatorBank</tt> classes, and the Nachos file system if there is
+     * a disk, and run the benchmarks if <tt>ThreadedKernel.benchmark</tt> is
+     * set. Note that the autograder never calls this method, so it is safe
+     * to put additional tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	Alarm.selfTest();
+	CachedFileSystem.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+	if (Machine.disk() != null)
+	    NachosFileSystem.selfTest();
+
+	if (Config.getBoolean("ThreadedKernel.benchmark", false)) {
+	    KThread.benchmark();
+	    LotteryScheduler.benchmark();
+	    if (Machine.disk() != null)
+		SynchDisk.benchmark();
+	}
     }
     
     /**
@@ -65,6 +79,15 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	FileSystem flushed = fileSystem;
+	if (flushed instanceof CachedFileSystem) {
+	    ((CachedFileSystem) flushed).flush();
+	    ((CachedFileSystem) flushed).printStats();
+	    flushed = ((CachedFileSystem) flushed).getFileSystem();
+	}
+	if (flushed instanceof NachosFileSystem)
+	    ((NachosFileSystem) flushed).flush();
+
 	Machine.halt();
     }
 
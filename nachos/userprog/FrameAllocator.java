@@ -0,0 +1,156 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+
+/**
+ * Keeps track of which physical pages (frames) of main memory are free.
+ *
+ * <p>
+ * Free frames are kept on a stack of <tt>int</tt>s, so allocating and
+ * freeing frames creates no garbage. Frames are handed out in batches: a
+ * process asks for all the frames it needs at once, and either gets all of
+ * them or none of them.
+ *
+ * <p>
+ * The allocator never blocks, so it protects itself by disabling interrupts
+ * rather than with a lock. It also remembers the most frames that have been
+ * in use at once, for <tt>printStats()</tt>.
+ */
+public class FrameAllocator {
+	/**
+	 * Allocate a new frame allocator, with every frame free.
+	 *
+	 * @param	numFrames	the number of physical pages to manage.
+	 */
+	public FrameAllocator(int numFrames) {
+		freeFrames = new int[numFrames];
+		allocated = new boolean[numFrames];
+
+		// push in reverse, so that frames are handed out in ascending order
+		for (int ppn=numFrames-1; ppn>=0; ppn--)
+			freeFrames[numFree++] = ppn;
+
+		updateStats();
+	}
+
+	/**
+	 * Return the number of free frames.
+	 *
+	 * @return	the number of frames that can be allocated.
+	 */
+	public int numFree() {
+		return numFree;
+	}
+
+	/**
+	 * Allocate the specified number of frames. Either all of them are
+	 * allocated, or, if there are not enough free frames, none are.
+	 *
+	 * @param	n	the number of frames to allocate.
+	 * @return	the physical page numbers of the frames, or <tt>null</tt> if
+	 *		there are not enough free frames.
+	 */
+	public int[] allocate(int n) {
+		Lib.assertTrue(n >= 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int[] frames = null;
+		if (n <= numFree) {
+			frames = new int[n];
+			for (int i=0; i<n; i++) {
+				int ppn = freeFrames[--numFree];
+				allocated[ppn] = true;
+				frames[i] = ppn;
+			}
+
+			updateStats();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return frames;
+	}
+
+	/**
+	 * Allocate a single frame.
+	 *
+	 * @return	the physical page number of the frame, or -1 if there are no
+	 *		free frames.
+	 */
+	public int allocate() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int ppn = -1;
+		if (numFree > 0) {
+			ppn = freeFrames[--numFree];
+			allocated[ppn] = true;
+
+			updateStats();
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return ppn;
+	}
+
+	/**
+	 * Free the specified frames. Each must currently be allocated.
+	 *
+	 * @param	frames	the physical page numbers of the frames to free.
+	 */
+	public void free(int[] frames) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i=0; i<frames.length; i++)
+			push(frames[i]);
+
+		updateStats();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Free a single frame, which must currently be allocated.
+	 *
+	 * @param	ppn	the physical page number of the frame to free.
+	 */
+	public void free(int ppn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		push(ppn);
+		updateStats();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Print how many frames are in use, the most that have been in use at
+	 * once, and how many are free.
+	 */
+	public void printStats() {
+		System.out.println("Memory: frames used "
+				+ (allocated.length - numFree)
+				+ " (peak " + maxUsed + ")"
+				+ ", free " + numFree);
+	}
+
+	private void push(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < allocated.length && allocated[ppn]);
+
+		allocated[ppn] = false;
+		freeFrames[numFree++] = ppn;
+	}
+
+	private void updateStats() {
+		maxUsed = Math.max(maxUsed, allocated.length - numFree);
+	}
+
+	/** A stack of the free frames; the top is at <tt>numFree-1</tt>. */
+	private int[] freeFrames;
+	private int numFree = 0;
+	/** The most frames that have been allocated at once. */
+	private int maxUsed = 0;
+	/** Whether each frame is allocated, to catch double frees. */
+	private boolean[] allocated;
+}
@@ -4,8 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.util.LinkedList;
-
 /**
  * A kernel that can support multiple user processes.
  */
@@ -24,13 +22,9 @@ public class UserKernel extends ThreadedKernel {
 	public void initialize(String[] args) {
 		super.initialize(args);
 
-		lock = new Lock();
 		console = new SynchConsole(Machine.console());
-		availablePageList = new LinkedList<>();
-		for (int i=0; i<Machine.processor().getNumPhysPages(); i++) {
-			availablePageList.addLast(i);
-		}
-//		System.out.println("total available pages: " + availablePageList.size() + " pages: " + Machine.processor().getNumPhysPages());
+		frameAllocator =
+				new FrameAllocator(Machine.processor().getNumPhysPages());
 
 		Machine.processor().setExceptionHandler(new Runnable() {
 			public void run() { exceptionHandler(); }
@@ -38,11 +32,15 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 	/**
-	 * Test the console device.
+	 * Test the console device, and run the benchmarks if
+	 * <tt>ThreadedKernel.benchmark</tt> is set.
 	 */
 	public void selfTest() {
 		super.selfTest();
 
+		if (Config.getBoolean("ThreadedKernel.benchmark", false))
+			UserProcess.benchmark();
+
 //		System.out.println("Testing the console device. Typed characters");
 //		System.out.println("will be echoed until q is typed.");
 //
@@ -113,31 +111,22 @@ public class UserKernel extends ThreadedKernel {
 //		System.out.println("finised");
 	}
 
-	public static int useNextAvailablePage() {
-		if (availablePageList.size() == 0) return -1;
-		int pageNum = availablePageList.removeFirst();
-		return pageNum;
-	}
-
-	public static void addNewAvailablePage(int pageNum) {
-		availablePageList.addLast(pageNum);
-	}
-
 	/**
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		frameAllocator.printStats();
+
 		super.terminate();
 	}
 
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
-	public static Lock lock = null;
+	/** Globally accessible reference to the physical frame allocator. */
+	public static FrameAllocator frameAllocator;
 
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 
-	public static LinkedList<Integer> availablePageList = null;
-
 }
@@ -7,7 +7,9 @@ import java.io.EOFException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -26,10 +28,9 @@ public class UserProcess {
 	 * Allocate a new process.
 	 */
 	public UserProcess() {
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int i=0; i<numPhysPages; i++)
-			pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+		// stdin and stdout are already open
+		fileTable[0] = UserKernel.console.openForReading();
+		fileTable[1] = UserKernel.console.openForWriting();
 	}
 
 	/**
@@ -77,17 +78,6 @@ public class UserProcess {
 	}
 
 
-	public int translateVirtualToPhysicalAddress(int virtualAddress) {
-		int offset = virtualAddress & ((1<<10)-1);
-//		System.out.println((1<<10)-1);
-		int vpn = (virtualAddress>>>10);
-//		System.out.println("vpn: " + vpn);
-		int ppn = pageTable[vpn].ppn;
-//		System.out.println("ppn: "+ppn);
-//		System.out.println("paddr: "+(ppn<<10)+offset);
-		return (ppn<<10)+offset;
-	}
-
 	/**
 	 * Read a null-terminated string from this process's virtual memory. Read
 	 * at most <tt>maxLength + 1</tt> bytes from the specified address, search
@@ -145,24 +135,7 @@ public class UserProcess {
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset,
 															 int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-
-		// translating virtual address to physical address
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
-
-		int paddr = translateVirtualToPhysicalAddress(vaddr);
-//		System.out.println("vaddr: " + vaddr + " padd: " + paddr);
-		if (paddr<0 || paddr >= memory.length) {
-			return 0;
-		}
-
-		int amount = Math.min(length, memory.length-paddr);
-		System.arraycopy(memory, paddr, data, offset, amount);
-
-		return amount;
+		return copyVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -194,24 +167,276 @@ public class UserProcess {
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset,
 																int length) {
+		return copyVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy data between this process's virtual memory and the specified
+	 * array, one page table lookup per page. Consecutive virtual pages that
+	 * map to consecutive physical pages are copied with a single
+	 * <tt>System.arraycopy()</tt>. The copy stops at the first page that
+	 * cannot be accessed.
+	 *
+	 * @param	vaddr	the first byte of virtual memory to access.
+	 * @param	data	the array to copy to or from.
+	 * @param	offset	the first byte to access in the array.
+	 * @param	length	the number of bytes to copy.
+	 * @param	write	<tt>true</tt> to copy from the array to virtual
+	 *			memory, <tt>false</tt> to copy the other way.
+	 * @return	the number of bytes successfully copied.
+	 */
+	private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+																int length, boolean write) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
+		if (vaddr < 0)
+			return 0;
+
+		// don't run past the top of the address space
+		length = (int) Math.min(length, (long) Integer.MAX_VALUE + 1 - vaddr);
+
 		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
 
-		// for now, just assume that virtual addresses equal physical addresses
-		if (vaddr < 0 || vaddr >= memory.length)
-			return 0;
+		while (amount < length) {
+			int paddr = translate(vaddr+amount, write);
+			if (paddr < 0)
+				break;
 
-		int paddr = translateVirtualToPhysicalAddress(vaddr);
-		if (paddr<0 || paddr >= memory.length) {
-			return 0;
+			int runLength = physicalRun(vaddr+amount, paddr, length-amount,
+					write);
+
+			if (write) {
+				System.arraycopy(data, offset+amount, memory, paddr, runLength);
+				invalidatePages(paddr, runLength);
+			}
+			else {
+				System.arraycopy(memory, paddr, data, offset+amount, runLength);
+			}
+
+			releaseRun(vaddr+amount, runLength);
+			amount += runLength;
 		}
-		int amount = Math.min(length, memory.length-paddr);
-		System.arraycopy(data, offset, memory, paddr, amount);
 
 		return amount;
 	}
 
+	/**
+	 * Transfer data directly between an open file and this process's virtual
+	 * memory, without an intermediate buffer. Each run of physically
+	 * consecutive pages is passed straight to the file's <tt>read()</tt> or
+	 * <tt>write()</tt> as a slice of main memory. The transfer stops at the
+	 * first page that cannot be accessed, or when the file transfers fewer
+	 * bytes than asked.
+	 *
+	 * @param	file	the file to transfer to or from.
+	 * @param	vaddr	the first byte of virtual memory to access.
+	 * @param	length	the number of bytes to transfer.
+	 * @param	toMemory	<tt>true</tt> to read from the file into virtual
+	 *				memory, <tt>false</tt> to write virtual memory to
+	 *				the file.
+	 * @return	the number of bytes transferred, or -1 if nothing could be
+	 *		transferred because of an error.
+	 */
+	private int transferVirtualMemory(OpenFile file, int vaddr, int length,
+																		boolean toMemory) {
+		if (vaddr < 0 || length < 0)
+			return -1;
+
+		// don't run past the top of the address space
+		length = (int) Math.min(length, (long) Integer.MAX_VALUE + 1 - vaddr);
+
+		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+
+		while (amount < length) {
+			int paddr = translate(vaddr+amount, toMemory);
+			if (paddr < 0)
+				return (amount > 0) ? amount : -1;
+
+			int runLength = physicalRun(vaddr+amount, paddr, length-amount,
+					toMemory);
+
+			int transferred;
+			if (toMemory) {
+				transferred = file.read(memory, paddr, runLength);
+				if (transferred > 0)
+					invalidatePages(paddr, transferred);
+			}
+			else {
+				transferred = file.write(memory, paddr, runLength);
+			}
+
+			releaseRun(vaddr+amount, runLength);
+
+			if (transferred < 0)
+				return (amount > 0) ? amount : -1;
+
+			amount += transferred;
+			if (transferred < runLength)
+				break;
+		}
+
+		return amount;
+	}
+
+	/**
+	 * Return the length of the run of physically consecutive memory that
+	 * starts at the specified virtual address, up to the specified length.
+	 *
+	 * @param	vaddr	the first virtual address of the run.
+	 * @param	paddr	the physical address <tt>vaddr</tt> translates to.
+	 * @param	length	the maximum length of the run.
+	 * @param	write	<tt>true</tt> if the kernel will write to the run.
+	 * @return	the length of the run.
+	 */
+	private int physicalRun(int vaddr, int paddr, int length, boolean write) {
+		int runLength = Math.min(length,
+				pageSize - Processor.offsetFromAddress(vaddr));
+
+		// extend the run while the next page follows in physical memory
+		while (runLength < length) {
+			int nextPaddr = translate(vaddr+runLength, write);
+			if (nextPaddr != paddr+runLength) {
+				if (nextPaddr >= 0)
+					releasePage(Processor.pageFromAddress(vaddr+runLength));
+				break;
+			}
+
+			runLength += Math.min(length-runLength, pageSize);
+		}
+
+		return runLength;
+	}
+
+	/**
+	 * Release every page in the specified range of virtual memory, after the
+	 * kernel is done with the physical memory it was translated to.
+	 */
+	private void releaseRun(int vaddr, int length) {
+		int lastVPN = Processor.pageFromAddress(vaddr+length-1);
+		for (int vpn=Processor.pageFromAddress(vaddr); vpn<=lastVPN; vpn++)
+			releasePage(vpn);
+	}
+
+	/**
+	 * Drop any instructions the processor has cached for the physical pages
+	 * that overlap the specified range, after the kernel wrote to it.
+	 */
+	private void invalidatePages(int paddr, int length) {
+		for (int ppn=paddr/pageSize; ppn<=(paddr+length-1)/pageSize; ppn++)
+			Machine.processor().invalidatePage(ppn);
+	}
+
+	/**
+	 * Translate a virtual address for a kernel access to this process's
+	 * memory, and mark the page used (and dirty, for a write). If this
+	 * succeeds, the caller must pass the page to <tt>releasePage()</tt> once
+	 * it is done with the physical memory.
+	 *
+	 * @param	vaddr	the virtual address to translate.
+	 * @param	write	<tt>true</tt> if the kernel will write to the page.
+	 * @return	the physical address, or -1 if the page cannot be accessed.
+	 */
+	private int translate(int vaddr, boolean write) {
+		int vpn = Processor.pageFromAddress(vaddr);
+		TranslationEntry entry = lookupPage(vpn, write);
+		if (entry == null)
+			return -1;
+
+		if (!entry.valid || (write && entry.readOnly) || entry.ppn < 0 ||
+				entry.ppn >= Machine.processor().getNumPhysPages()) {
+			releasePage(vpn);
+			return -1;
+		}
+
+		entry.used = true;
+		if (write)
+			entry.dirty = true;
+
+		return Processor.makeAddress(entry.ppn,
+				Processor.offsetFromAddress(vaddr));
+	}
+
+	/**
+	 * Return the page table entry the kernel should use to access the
+	 * specified virtual page, or <tt>null</tt> if there is none.
+	 *
+	 * @param	vpn	the virtual page number.
+	 * @param	write	<tt>true</tt> if the kernel will write to the page.
+	 * @return	the page table entry, or <tt>null</tt>.
+	 */
+	protected TranslationEntry lookupPage(int vpn, boolean write) {
+		if (pageTable == null || vpn < 0 || vpn >= pageTable.length)
+			return null;
+
+		return pageTable[vpn];
+	}
+
+	/**
+	 * Called when the kernel is done with the physical memory of a page
+	 * returned by <tt>lookupPage()</tt>. A process that can move its pages
+	 * while the kernel is using them must keep the page where it is until
+	 * this is called.
+	 *
+	 * @param	vpn	the virtual page number.
+	 */
+	protected void releasePage(int vpn) {
+	}
+
+	/**
+	 * Called after a file has been created, written, or removed, so that a
+	 * process that caches the contents of executables can drop them.
+	 *
+	 * @param	name	the name of the file.
+	 */
+	protected void fileChanged(String name) {
+	}
+
+	/**
+	 * Measure the cost of copying buffers between the kernel and user
+	 * memory, as the <tt>read()</tt> and <tt>write()</tt> syscalls do. Each
+	 * buffer size is copied both ways through a page table that maps
+	 * virtual pages to consecutive physical pages, and through one that
+	 * maps them in reverse order so that no two are consecutive.
+	 */
+	public static void benchmark() {
+		final int numCopies = 2000;
+
+		UserProcess process = new UserProcess();
+		int numPages = Machine.processor().getNumPhysPages();
+		process.pageTable = new TranslationEntry[numPages];
+
+		// the first pass just warms up the JIT
+		for (int pass=0; pass<2; pass++) {
+			for (int scattered=0; scattered<2; scattered++) {
+				for (int vpn=0; vpn<numPages; vpn++) {
+					int ppn = (scattered == 0) ? vpn : numPages-1-vpn;
+					process.pageTable[vpn] =
+							new TranslationEntry(vpn, ppn, true, false, false, false);
+				}
+
+				for (int size=pageSize; size<=numPages*pageSize; size*=4) {
+					byte[] buffer = new byte[size];
+
+					long start = System.nanoTime();
+					for (int i=0; i<numCopies; i++) {
+						Lib.assertTrue(process.writeVirtualMemory(100, buffer, 0,
+								size-100) == size-100);
+						Lib.assertTrue(process.readVirtualMemory(100, buffer, 0,
+								size-100) == size-100);
+					}
+					long elapsed = System.nanoTime() - start;
+
+					if (pass == 1)
+						System.out.println("copy " + size + " bytes, "
+								+ (scattered == 0 ? "contiguous" : "scattered") + ": "
+								+ elapsed/(2*numCopies) + " ns per copy");
+				}
+			}
+		}
+	}
+
 	/**
 	 * Load the executable with the specified name into this process, and
 	 * prepare to pass it the specified arguments. Opens the executable, reads
@@ -233,6 +458,7 @@ public class UserProcess {
 
 		try {
 			coff = new Coff(executable);
+			coffName = name;
 		}
 		catch (EOFException e) {
 			executable.close();
@@ -276,6 +502,9 @@ public class UserProcess {
 		// and finally reserve 1 page for arguments
 		numPages++;
 
+		// entries are only created for the pages that get mapped
+		pageTable = new TranslationEntry[numPages];
+
 		//System.out.println("before load section");
 
 		if (!loadSections())
@@ -312,12 +541,20 @@ public class UserProcess {
 	 * @return	<tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		if (numPages > UserKernel.availablePageList.size()){
+		// reserve every page up front, so loading can't fail halfway through
+		int[] frames = UserKernel.frameAllocator.allocate(numPages);
+		if (frames == null) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 
+		for (int vpn=0; vpn<numPages; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, frames[vpn], true, false,
+					false, false);
+
+		boolean[] fromCoff = new boolean[numPages];
+
 		// load sections
 		for (int s=0; s<coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
@@ -325,15 +562,26 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 					+ " section (" + section.getLength() + " pages)");
 
+			int[] ppns = new int[section.getLength()];
 			for (int i=0; i<section.getLength(); i++) {
 				int vpn = section.getFirstVPN()+i;
-				// mapping virtual to physical address
-				UserKernel.lock.acquire();
-				int phyPageNum = UserKernel.useNextAvailablePage();
-				UserKernel.lock.release();
-				pageTable[vpn].ppn = phyPageNum;
 				if(section.isReadOnly()) pageTable[vpn].readOnly = true;
-				section.loadPage(i, phyPageNum);
+				ppns[i] = pageTable[vpn].ppn;
+				fromCoff[vpn] = true;
+			}
+
+			// one read for the whole section
+			section.loadPages(ppns);
+		}
+
+		// the stack and argument pages must not show the last owner's data
+		byte[] memory = Machine.processor().getMemory();
+		for (int vpn=0; vpn<numPages; vpn++) {
+			if (!fromCoff[vpn]) {
+				int ppn = pageTable[vpn].ppn;
+				Arrays.fill(memory, ppn*pageSize,
+						(ppn+1)*pageSize, (byte) 0);
+				Machine.processor().invalidatePage(ppn);
 			}
 		}
 
@@ -344,20 +592,16 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		for (int s=0; s<coff.getNumSections(); s++) {
-			CoffSection section = coff.getSection(s);
-
-			for (int i=0; i<section.getLength(); i++) {
-				int vpn = section.getFirstVPN()+i;
-				// mapping virtual to physical address
-				int phyPageNum = pageTable[vpn].ppn;
-				pageTable[vpn].ppn = -1;
-				pageTable[vpn].readOnly = false;
-				UserKernel.lock.acquire();
-				UserKernel.addNewAvailablePage(phyPageNum);
-				UserKernel.lock.release();
+		int[] frames = new int[numPages];
+		int numFrames = 0;
+		for (int vpn=0; vpn<numPages; vpn++) {
+			if (pageTable[vpn] != null) {
+				frames[numFrames++] = pageTable[vpn].ppn;
+				pageTable[vpn] = null;
 			}
 		}
+
+		UserKernel.frameAllocator.free(Arrays.copyOf(frames, numFrames));
 	}
 
 	/**
@@ -390,47 +634,156 @@ public class UserProcess {
 
 		if(UserKernel.currentProcess().parentProcess != null) return -1;
 		unloadSections();
-		fileRead.close();
-		fileWrite.close();
-		Machine.halt();
+		closeAllFiles();
+		// let the kernel clean up after itself before the machine halts
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
+	private int handleCreate(int nameVirtualAddress) {
+		return openFile(nameVirtualAddress, true);
+	}
+
+	private int handleOpen(int nameVirtualAddress) {
+		return openFile(nameVirtualAddress, false);
+	}
+
 	private int handleRead(int fd, int virtualAddress, int size) {
-		if(fd != 0 || size <= 0) return -1;
+		OpenFile file = getFile(fd);
+		if(file == null || size < 0) return -1;
+
+		// only the console needs whole reads kept in order; files
+		// synchronize themselves
+		if(fileNames[fd] != null)
+			return transferVirtualMemory(file, virtualAddress, size, true);
 
-		byte[] data = new byte[size];
 		readSemaphore.P();
-		fileRead.read(data, 0, size);
+		int length = transferVirtualMemory(file, virtualAddress, size, true);
 		readSemaphore.V();
-		return writeVirtualMemory(virtualAddress, data);
-  }
-
-  private int handleWrite(int fd, int virtualAdress, int size){
-		if(fd != 1 || size <= 0) return -1;
-		byte[] data = new byte[size];
-		int length = readVirtualMemory(virtualAdress, data);
-//		if(length == 0) return 0;
+		return length;
+	}
+
+	private int handleWrite(int fd, int virtualAdress, int size){
+		OpenFile file = getFile(fd);
+		if(file == null || size < 0) return -1;
+
+		if(fileNames[fd] != null){
+			int length = transferVirtualMemory(file, virtualAdress, size, false);
+			if(length > 0) fileChanged(fileNames[fd]);
+			return length;
+		}
+
 		writeSemaphore.P();
-		length = fileWrite.write(data, 0, length);
+		int length = transferVirtualMemory(file, virtualAdress, size, false);
 		writeSemaphore.V();
 		return length;
 	}
 
+	private int handleClose(int fd) {
+		if(getFile(fd) == null) return -1;
+
+		closeFile(fd);
+		return 0;
+	}
+
+	private int handleUnlink(int nameVirtualAddress) {
+		String name = readVirtualMemoryString(nameVirtualAddress, maxNameLength);
+		if(name == null) return -1;
+
+		fileSemaphore.P();
+		boolean removed;
+		if(openFileCounts.containsKey(name)){
+			// delete it when the last descriptor is closed
+			unlinkedFiles.add(name);
+			removed = true;
+		} else {
+			removed = ThreadedKernel.fileSystem.remove(name);
+		}
+		fileSemaphore.V();
+		if(removed) fileChanged(name);
+
+		return removed ? 0 : -1;
+	}
+
+	/**
+	 * Open (or create) the file whose name is at the specified virtual
+	 * address, and give it the lowest free file descriptor.
+	 *
+	 * @return	the new file descriptor, or -1 if an error occurred.
+	 */
+	private int openFile(int nameVirtualAddress, boolean create) {
+		String name = readVirtualMemoryString(nameVirtualAddress, maxNameLength);
+		if(name == null || ThreadedKernel.fileSystem == null) return -1;
+
+		int fd = 0;
+		while(fd < maxOpenFiles && fileTable[fd] != null) fd++;
+		if(fd == maxOpenFiles) return -1;
+
+		fileSemaphore.P();
+		OpenFile file = null;
+		// no new descriptors for a file that is waiting to be deleted
+		if(!unlinkedFiles.contains(name))
+			file = ThreadedKernel.fileSystem.open(name, create);
+		if(file != null){
+			fileTable[fd] = file;
+			fileNames[fd] = name;
+			Integer count = openFileCounts.get(name);
+			openFileCounts.put(name, (count == null) ? 1 : count+1);
+		}
+		fileSemaphore.V();
+		// creating a file truncates it if it exists
+		if(file != null && create) fileChanged(name);
+
+		return (file != null) ? fd : -1;
+	}
+
+	/**
+	 * Close a file descriptor. If it was the last descriptor, in any
+	 * process, for a file that has been unlinked, delete the file.
+	 */
+	private void closeFile(int fd) {
+		fileTable[fd].close();
+		fileTable[fd] = null;
+
+		String name = fileNames[fd];
+		fileNames[fd] = null;
+		if(name == null) return;
+
+		fileSemaphore.P();
+		int count = openFileCounts.get(name) - 1;
+		if(count > 0){
+			openFileCounts.put(name, count);
+		} else {
+			openFileCounts.remove(name);
+			if(unlinkedFiles.remove(name))
+				ThreadedKernel.fileSystem.remove(name);
+		}
+		fileSemaphore.V();
+	}
+
+	private void closeAllFiles() {
+		for(int fd = 0; fd < maxOpenFiles; fd++){
+			if(fileTable[fd] != null) closeFile(fd);
+		}
+	}
+
+	private OpenFile getFile(int fd) {
+		if(fd < 0 || fd >= maxOpenFiles) return null;
+		return fileTable[fd];
+	}
+
 
 	private void handleExit(int status){
 		unloadSections();
+		closeAllFiles();
 		if(parentProcess != null){
 			//System.out.println("process exiting : " + processId);
 			parentProcess.childProcesesStatus.replace(processId, status);
 			//System.out.println("length before : " + parentProcess.childProcesses.size());
 			parentProcess.childProcesses.remove(this);
 			//System.out.println("length before : " + parentProcess.childProcesses.size());
-		} else{
-			fileWrite.close();
-			fileRead.close();
 		}
 		for(int i = 0; i < childProcesses.size(); i++){
 			childProcesses.get(i).parentProcess = null;
@@ -450,7 +803,7 @@ public class UserProcess {
 			tempAddress += argvs[i].length() + 1;
 		}
 
-		UserProcess process = new UserProcess();
+		UserProcess process = newUserProcess();
 		process.parentProcess = this;
 		processSemaphore.P();
 		process.processId = totalProcesses + 1;
@@ -553,6 +906,18 @@ public class UserProcess {
 			case syscallJoin:
 				return handleJoin(a0, a1);
 
+			case syscallCreate:
+				return handleCreate(a0);
+
+			case syscallOpen:
+				return handleOpen(a0);
+
+			case syscallClose:
+				return handleClose(a0);
+
+			case syscallUnlink:
+				return handleUnlink(a0);
+
 			default:
 				unloadSections();
 				Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -597,6 +962,8 @@ public class UserProcess {
 
 	/** The program being run by this process. */
 	protected Coff coff;
+	/** The name of the file containing the program. */
+	protected String coffName;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
@@ -618,8 +985,21 @@ public class UserProcess {
 	private static int totalProcesses= 0;
 	private UThread thread;
 	private static Semaphore processSemaphore = new Semaphore(1);
+	/** Keep each read from and write to the console whole. */
 	private static Semaphore readSemaphore = new Semaphore(1);
 	private static Semaphore writeSemaphore = new Semaphore(1);
-	private static OpenFile fileRead = UserKernel.console.openForReading();
-	private static OpenFile fileWrite = UserKernel.console.openForWriting();
+
+	/** The maximum number of files a process can have open at once. */
+	private static final int maxOpenFiles = 16;
+	/** The maximum length of a file name, not including the null byte. */
+	private static final int maxNameLength = 256;
+	/** This process's open files, indexed by file descriptor. */
+	private OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+	/** The name of each open disk file, or <tt>null</tt> for streams. */
+	private String[] fileNames = new String[maxOpenFiles];
+	/** The number of open descriptors for each disk file, in all processes. */
+	private static HashMap<String, Integer> openFileCounts = new HashMap<>();
+	/** Files that were unlinked while open, to delete on the last close. */
+	private static HashSet<String> unlinkedFiles = new HashSet<>();
+	private static Semaphore fileSemaphore = new Semaphore(1);
 }
@@ -0,0 +1,54 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An LRU-approximating replacement policy based on aging. Each frame has an
+ * 8-bit age counter. Whenever a victim is needed, every counter is shifted
+ * right, the page's used bit is shifted in at the top and then cleared, and
+ * the frame with the smallest counter is evicted. A page that was used
+ * recently therefore always has a larger counter than one that was not.
+ */
+public class AgingPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new aging replacement policy.
+     */
+    public AgingPolicy() {
+	ages = new int[numFrames()];
+    }
+
+    public void frameLoaded(int ppn) {
+	// loading a page counts as using it
+	ages[ppn] = topBit;
+    }
+
+    public int findVictim() {
+	for (int ppn=0; ppn<numFrames(); ppn++) {
+	    TranslationEntry entry = VMKernel.getEntry(ppn);
+	    if (entry == null)
+		continue;
+
+	    ages[ppn] = (ages[ppn] >>> 1) | (entry.used ? topBit : 0);
+	    entry.used = false;
+	}
+
+	// start where the last search left off, so ties are spread around
+	int victim = -1;
+	for (int i=0; i<numFrames(); i++) {
+	    int ppn = (start+i) % numFrames();
+	    if (VMKernel.isEvictable(ppn) &&
+		(victim == -1 || ages[ppn] < ages[victim]))
+		victim = ppn;
+	}
+
+	if (victim != -1)
+	    start = (victim+1) % numFrames();
+
+	return victim;
+    }
+
+    private int[] ages;
+    private int start = 0;
+
+    private static final int topBit = 0x80;
+}
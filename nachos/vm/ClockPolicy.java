@@ -0,0 +1,38 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock, or second-chance, replacement policy. A hand sweeps around the
+ * frames; a frame whose page has been used since the hand last passed gets a
+ * second chance and has its used bit cleared, and the first frame whose page
+ * has not been used is evicted.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new clock replacement policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public int findVictim() {
+	// the first sweep clears every used bit, so two are always enough
+	for (int i=0; i<2*numFrames(); i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames();
+
+	    if (!VMKernel.isEvictable(ppn))
+		continue;
+
+	    TranslationEntry entry = VMKernel.getEntry(ppn);
+	    if (!entry.used)
+		return ppn;
+
+	    entry.used = false;
+	}
+
+	return -1;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,55 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The enhanced clock replacement policy. Like the clock policy, but it also
+ * looks at the dirty bit, and prefers to evict a page that has not been
+ * written, since a clean page can be dropped without writing it to swap. The
+ * hand first looks for a page that is neither used nor dirty, then for one
+ * that is dirty but not used, clearing used bits as it goes, and repeats.
+ */
+public class EnhancedClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new enhanced clock replacement policy.
+     */
+    public EnhancedClockPolicy() {
+    }
+
+    public int findVictim() {
+	// after the first round every used bit is clear
+	for (int round=0; round<2; round++) {
+	    for (int i=0; i<numFrames(); i++) {
+		int ppn = advance();
+		if (!VMKernel.isEvictable(ppn))
+		    continue;
+
+		TranslationEntry entry = VMKernel.getEntry(ppn);
+		if (!entry.used && !entry.dirty)
+		    return ppn;
+	    }
+
+	    for (int i=0; i<numFrames(); i++) {
+		int ppn = advance();
+		if (!VMKernel.isEvictable(ppn))
+		    continue;
+
+		TranslationEntry entry = VMKernel.getEntry(ppn);
+		if (!entry.used)
+		    return ppn;
+
+		entry.used = false;
+	    }
+	}
+
+	return -1;
+    }
+
+    private int advance() {
+	int ppn = hand;
+	hand = (hand+1) % numFrames();
+	return ppn;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,47 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which frame to evict when a page must be loaded and physical
+ * memory is full. The policy is selected by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * A policy looks at the frames in <tt>VMKernel.invertedPageTable</tt>, and
+ * may only choose one that <tt>VMKernel.isEvictable()</tt>. It is always
+ * called with the VM lock held, and the used and dirty bits of every page in
+ * the TLB already copied into the page table.
+ */
+public abstract class ReplacementPolicy {
+    /**
+     * Allocate a new replacement policy.
+     */
+    public ReplacementPolicy() {
+    }
+
+    /**
+     * Called when a page is loaded into a frame.
+     *
+     * @param	ppn	the frame the page was loaded into.
+     */
+    public void frameLoaded(int ppn) {
+    }
+
+    /**
+     * Choose a frame to evict.
+     *
+     * @return	the physical page number of the victim, or -1 if no frame can
+     *		be evicted.
+     */
+    public abstract int findVictim();
+
+    /**
+     * Return the number of frames in physical memory.
+     *
+     * @return	the number of frames.
+     */
+    protected int numFrames() {
+	return Machine.processor().getNumPhysPages();
+    }
+}
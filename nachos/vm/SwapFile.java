@@ -0,0 +1,203 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The swap area: a file in the kernel's file system, divided into page-sized
+ * slots that hold the contents of evicted pages.
+ *
+ * <p>
+ * Slots are tracked in a bitmap, and freed slots are reused, lowest first,
+ * so the file stays as small as possible. Every file access costs a fixed
+ * delay no matter how much is transferred, so runs of consecutive slots can
+ * be allocated, written, and read with a single access.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     *
+     * @param	name	the name of the file to create.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	// evicted pages are written once and read once, so caching them would
+	// only push useful blocks out of the cache
+	fileSystem = ThreadedKernel.fileSystem;
+	if (fileSystem instanceof CachedFileSystem)
+	    fileSystem = ((CachedFileSystem) fileSystem).getFileSystem();
+
+	file = fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "cannot create swap file " + name);
+    }
+
+    /**
+     * Allocate a run of consecutive swap slots.
+     *
+     * @param	count	the number of slots to allocate.
+     * @return	the number of the first slot.
+     */
+    public int allocate(int count) {
+	Lib.assertTrue(count > 0);
+
+	int run = 0;
+	for (int slot=0; ; slot++) {
+	    if (slot >= bitmap.length*64)
+		grow();
+
+	    // skip over words with no free slots
+	    if ((slot & 63) == 0 && bitmap[slot>>6] == -1L) {
+		run = 0;
+		slot += 63;
+		continue;
+	    }
+
+	    if (isAllocated(slot)) {
+		run = 0;
+	    }
+	    else if (++run == count) {
+		int first = slot - count + 1;
+		for (int i=first; i<=slot; i++)
+		    bitmap[i>>6] |= 1L << (i & 63);
+
+		return first;
+	    }
+	}
+    }
+
+    /**
+     * Free a swap slot, so that it can be reused.
+     *
+     * @param	slot	the slot to free.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < bitmap.length*64 &&
+		       isAllocated(slot));
+
+	bitmap[slot>>6] &= ~(1L << (slot & 63));
+    }
+
+    private boolean isAllocated(int slot) {
+	return (bitmap[slot>>6] & (1L << (slot & 63))) != 0;
+    }
+
+    private void grow() {
+	long[] newBitmap = new long[bitmap.length*2];
+	System.arraycopy(bitmap, 0, newBitmap, 0, bitmap.length);
+	bitmap = newBitmap;
+    }
+
+    /**
+     * Write frames of physical memory to consecutive swap slots, with a
+     * single write.
+     *
+     * @param	firstSlot	the first slot to write.
+     * @param	ppns	the frames to write, in slot order.
+     * @param	count	the number of frames to write.
+     */
+    public void write(int firstSlot, int[] ppns, int count) {
+	Lib.debug(dbgVM, "\tswap out " + count + " frames to slot " + firstSlot);
+
+	byte[] memory = Machine.processor().getMemory();
+	int written;
+
+	if (count == 1) {
+	    written = file.write(firstSlot*pageSize, memory, ppns[0]*pageSize,
+				 pageSize);
+	}
+	else {
+	    byte[] buffer = getBuffer(count);
+	    for (int i=0; i<count; i++)
+		System.arraycopy(memory, ppns[i]*pageSize, buffer, i*pageSize,
+				 pageSize);
+
+	    written = file.write(firstSlot*pageSize, buffer, 0,
+				 count*pageSize);
+	}
+
+	Lib.assertTrue(written == count*pageSize, "swap file write failed");
+
+	numWrites++;
+	numPagesOut += count;
+    }
+
+    /**
+     * Read consecutive swap slots into frames of physical memory, with a
+     * single read.
+     *
+     * @param	firstSlot	the first slot to read.
+     * @param	ppns	the frames to read into, in slot order.
+     * @param	count	the number of slots to read.
+     */
+    public void read(int firstSlot, int[] ppns, int count) {
+	Lib.debug(dbgVM, "\tswap in " + count + " slots from slot " + firstSlot);
+
+	byte[] memory = Machine.processor().getMemory();
+	int read;
+
+	if (count == 1) {
+	    read = file.read(firstSlot*pageSize, memory, ppns[0]*pageSize,
+			     pageSize);
+	}
+	else {
+	    byte[] buffer = getBuffer(count);
+	    read = file.read(firstSlot*pageSize, buffer, 0, count*pageSize);
+
+	    for (int i=0; i<count; i++)
+		System.arraycopy(buffer, i*pageSize, memory, ppns[i]*pageSize,
+				 pageSize);
+	}
+
+	Lib.assertTrue(read == count*pageSize, "swap file read failed");
+
+	for (int i=0; i<count; i++)
+	    Machine.processor().invalidatePage(ppns[i]);
+
+	numReads++;
+	numPagesIn += count;
+    }
+
+    /**
+     * Return a buffer big enough to hold the specified number of pages. Swap
+     * I/O is done with the VM lock held, so one buffer is enough.
+     */
+    private byte[] getBuffer(int count) {
+	if (buffer.length < count*pageSize)
+	    buffer = new byte[count*pageSize];
+
+	return buffer;
+    }
+
+    /**
+     * Print how many reads and writes have been made, and how many pages
+     * they moved, if the swap file has been used.
+     */
+    public void printStats() {
+	if (numReads + numWrites > 0)
+	    System.out.println("Swap I/O: reads " + numReads
+			       + " (" + numPagesIn + " pages)"
+			       + ", writes " + numWrites
+			       + " (" + numPagesOut + " pages)");
+    }
+
+    /**
+     * Close and delete the swap file.
+     */
+    public void close() {
+	file.close();
+	fileSystem.remove(name);
+    }
+
+    private String name;
+    private FileSystem fileSystem;
+    private OpenFile file;
+    /** One bit for each slot, set if the slot is allocated. */
+    private long[] bitmap = new long[1];
+    private byte[] buffer = new byte[0];
+    private int numReads = 0, numWrites = 0;
+    private int numPagesIn = 0, numPagesOut = 0;
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,136 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A two-level page table, for processes whose address translations are
+ * handled in software. The table is a directory of second-level tables, each
+ * covering <tt>tableSize</tt> consecutive virtual pages. Second-level tables
+ * are only allocated once a page in their range is mapped, and the directory
+ * only grows as far as the highest mapped page, so a large, sparse address
+ * space costs memory in proportion to the pages it actually uses.
+ *
+ * <p>
+ * The processor can only walk a flat page table, so this table is only of
+ * use when the processor is running with a TLB, and the kernel refills the
+ * TLB on a miss.
+ */
+public class TwoLevelPageTable {
+    /**
+     * Allocate a new, empty page table.
+     */
+    public TwoLevelPageTable() {
+    }
+
+    /**
+     * Return the translation for the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the translation entry, or <tt>null</tt> if the page is not
+     *		mapped.
+     */
+    public TranslationEntry get(int vpn) {
+	if (vpn < 0)
+	    return null;
+
+	int dir = vpn >>> tableBits;
+	if (dir >= directory.length || directory[dir] == null)
+	    return null;
+
+	return directory[dir][vpn & tableMask];
+    }
+
+    /**
+     * Map the virtual page of the specified translation entry, replacing any
+     * entry already mapped there.
+     *
+     * @param	entry	the translation entry to add.
+     */
+    public void put(TranslationEntry entry) {
+	Lib.assertTrue(entry != null && entry.vpn >= 0);
+
+	int dir = entry.vpn >>> tableBits;
+	if (dir >= directory.length) {
+	    TranslationEntry[][] newDirectory =
+		new TranslationEntry[Math.max(dir+1, directory.length*2)][];
+	    System.arraycopy(directory, 0, newDirectory, 0, directory.length);
+	    directory = newDirectory;
+	}
+
+	if (directory[dir] == null) {
+	    directory[dir] = new TranslationEntry[tableSize];
+	    numTables++;
+	}
+
+	TranslationEntry[] table = directory[dir];
+	if (table[entry.vpn & tableMask] == null)
+	    numEntries++;
+	table[entry.vpn & tableMask] = entry;
+    }
+
+    /**
+     * Unmap the specified virtual page. A second-level table is released once
+     * no pages in its range are mapped.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the translation entry that was removed, or <tt>null</tt> if the
+     *		page was not mapped.
+     */
+    public TranslationEntry remove(int vpn) {
+	TranslationEntry entry = get(vpn);
+	if (entry == null)
+	    return null;
+
+	int dir = vpn >>> tableBits;
+	TranslationEntry[] table = directory[dir];
+	table[vpn & tableMask] = null;
+	numEntries--;
+
+	for (int i=0; i<tableSize; i++) {
+	    if (table[i] != null)
+		return entry;
+	}
+
+	directory[dir] = null;
+	numTables--;
+
+	return entry;
+    }
+
+    /**
+     * Return the number of mapped pages.
+     *
+     * @return	the number of translation entries in this table.
+     */
+    public int numEntries() {
+	return numEntries;
+    }
+
+    /**
+     * Return the number of second-level tables currently allocated.
+     *
+     * @return	the number of second-level tables.
+     */
+    public int numTables() {
+	return numTables;
+    }
+
+    /**
+     * Return one more than the highest virtual page number this table can
+     * hold without growing its directory.
+     *
+     * @return	the number of virtual pages covered by the directory.
+     */
+    public int coveredPages() {
+	return directory.length << tableBits;
+    }
+
+    private static final int tableBits = 6;
+    /** The number of virtual pages covered by each second-level table. */
+    public static final int tableSize = 1 << tableBits;
+    private static final int tableMask = tableSize - 1;
+
+    private TranslationEntry[][] directory = new TranslationEntry[1][];
+    private int numEntries = 0;
+    private int numTables = 0;
+}
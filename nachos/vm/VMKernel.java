@@ -1,5 +1,8 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -7,6 +10,37 @@ import nachos.vm.*;
 
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * The kernel keeps an inverted page table, recording which process's page is
+ * loaded into each frame. When a page must be loaded and no frame is free, a
+ * victim is chosen by the replacement policy named by the <tt>nachos.conf</tt>
+ * key <tt>VMKernel.replacementPolicy</tt>, and written to the swap file if it
+ * is dirty.
+ *
+ * <p>
+ * Each write to swap costs a full file access, so when the victim is dirty
+ * the kernel keeps evicting, up to <tt>VMKernel.swapBatchSize</tt> pages,
+ * for as long as the victims are dirty, and writes them all to consecutive
+ * slots at once. The extra frames are returned to the free pool. A fault on
+ * a swapped page reads up to <tt>VMKernel.swapReadAhead</tt> following pages
+ * of the same process with it, if they were written out alongside it.
+ *
+ * <p>
+ * The TLB is refilled from the current process's page table on a miss. The
+ * entry to replace is chosen by <tt>VMKernel.tlbReplacement</tt>, which is
+ * <tt>random</tt>, <tt>fifo</tt>, or <tt>nru</tt>.
+ *
+ * <p>
+ * Pages of COFF sections are loaded once and shared by every process running
+ * the same executable, through a cache of <tt>SharedPage</tt>s keyed by file
+ * name and page. A shared page stays cached after the last process using it
+ * exits, until it is evicted, so running a program again finds its code
+ * already in memory. When an executable is created, written, or removed,
+ * its pages are dropped from the cache, and unused ones are freed, so the
+ * next process to run it loads the new contents. Shared pages are always
+ * mapped read-only; a process that writes to a page of a writable section
+ * gets its own copy.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,11 +55,43 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	vmLock = new Lock();
+
+	invertedPageTable = new Frame[Machine.processor().getNumPhysPages()];
+	for (int ppn=0; ppn<invertedPageTable.length; ppn++)
+	    invertedPageTable[ppn] = new Frame();
+
+	policy = (ReplacementPolicy) Lib.constructObject(
+	    Config.getString("VMKernel.replacementPolicy",
+			     "nachos.vm.ClockPolicy"));
+
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
+	swapBatchSize = Config.getInteger("VMKernel.swapBatchSize", 4);
+	swapReadAhead = Config.getInteger("VMKernel.swapReadAhead", 3);
+	Lib.assertTrue(swapBatchSize >= 1 && swapReadAhead >= 0);
+
+	victimFrames = new int[swapBatchSize];
+	victimProcesses = new VMProcess[swapBatchSize];
+	victimEntries = new TranslationEntry[swapBatchSize];
+	order = new int[swapBatchSize];
+
+	String tlbPolicyName = Config.getString("VMKernel.tlbReplacement",
+						"random");
+	if (tlbPolicyName.equals("random"))
+	    tlbPolicy = tlbRandom;
+	else if (tlbPolicyName.equals("fifo"))
+	    tlbPolicy = tlbFIFO;
+	else if (tlbPolicyName.equals("nru"))
+	    tlbPolicy = tlbNRU;
+	else
+	    Lib.assertNotReached("unknown TLB replacement policy: "
+				 + tlbPolicyName);
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,14 +102,531 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (numPageFaults > 0)
+	    System.out.println("Demand paging: page faults " + numPageFaults);
+	swap.printStats();
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a frame for a page, evicting pages if no frame is free. The VM
+     * lock must be held. This may block while victims are written to swap.
+     *
+     * @return	the physical page number of the frame, or -1 if every frame
+     *		is pinned.
+     */
+    static int allocateFrame() {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	int ppn = frameAllocator.allocate();
+	if (ppn != -1)
+	    return ppn;
+
+	syncTLB(false);
+
+	int numVictims = 0;
+	while (numVictims < swapBatchSize) {
+	    int victim = policy.findVictim();
+	    if (victim == -1)
+		break;
+
+	    Frame frame = invertedPageTable[victim];
+	    Lib.debug(dbgVM, "\tevicting page " + frame.entry.vpn
+		      + " from frame " + victim);
+
+	    invalidateTLB(victim);
+	    frame.entry.valid = false;
+
+	    victimFrames[numVictims] = victim;
+	    victimProcesses[numVictims] = frame.process;
+	    victimEntries[numVictims] = frame.entry;
+	    numVictims++;
+
+	    // a shared page is never dirty, and is loaded again on demand
+	    if (frame.shared != null && frame.shared.refCount == 0)
+		uncacheSharedPage(frame.shared);
+
+	    frame.process = null;
+	    frame.entry = null;
+	    frame.shared = null;
+
+	    // a clean page costs nothing to evict, so stop at the first one
+	    if (!victimEntries[numVictims-1].dirty)
+		break;
+	}
+
+	if (numVictims == 0) {
+	    Lib.debug(dbgVM, "\tevery frame is pinned");
+	    return -1;
+	}
+
+	writeBack(numVictims);
+
+	for (int i=1; i<numVictims; i++)
+	    frameAllocator.free(victimFrames[i]);
+
+	ppn = victimFrames[0];
+
+	Arrays.fill(victimProcesses, null);
+	Arrays.fill(victimEntries, null);
+
+	return ppn;
+    }
+
+    /**
+     * Write the dirty pages among the victims to consecutive swap slots with
+     * a single write. Each process's pages are kept together and in order,
+     * so that reading ahead on a later fault finds them side by side.
+     */
+    private static void writeBack(int numVictims) {
+	int numDirty = 0;
+	for (int i=0; i<numVictims; i++) {
+	    if (victimEntries[i].dirty)
+		order[numDirty++] = i;
+	}
+
+	if (numDirty == 0)
+	    return;
+
+	// insertion sort by the first victim of the same process, then by vpn
+	for (int i=1; i<numDirty; i++) {
+	    int victim = order[i];
+	    int j = i;
+	    while (j > 0 && writeBefore(victim, order[j-1])) {
+		order[j] = order[j-1];
+		j--;
+	    }
+	    order[j] = victim;
+	}
+
+	// the old copies are stale, so their slots can be part of the new run
+	for (int i=0; i<numDirty; i++) {
+	    int victim = order[i];
+	    victimProcesses[victim].setSwapSlot(victimEntries[victim].vpn, -1);
+	}
+
+	int firstSlot = swap.allocate(numDirty);
+
+	int[] ppns = new int[numDirty];
+	for (int i=0; i<numDirty; i++) {
+	    int victim = order[i];
+	    victimProcesses[victim].setSwapSlot(victimEntries[victim].vpn,
+						firstSlot + i);
+	    victimEntries[victim].dirty = false;
+	    ppns[i] = victimFrames[victim];
+	}
+
+	swap.write(firstSlot, ppns, numDirty);
+    }
+
+    private static boolean writeBefore(int victim1, int victim2) {
+	int group1 = firstVictimOf(victimProcesses[victim1]);
+	int group2 = firstVictimOf(victimProcesses[victim2]);
+
+	if (group1 != group2)
+	    return group1 < group2;
+
+	return victimEntries[victim1].vpn < victimEntries[victim2].vpn;
+    }
+
+    private static int firstVictimOf(VMProcess process) {
+	int i = 0;
+	while (victimProcesses[i] != process)
+	    i++;
+
+	return i;
+    }
+
+    /**
+     * Record that a page has been loaded into a frame. The VM lock must be
+     * held.
+     *
+     * @param	ppn	the frame.
+     * @param	process	the process that owns the page.
+     * @param	entry	the page's translation entry.
+     */
+    static void mapFrame(int ppn, VMProcess process, TranslationEntry entry) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	Frame frame = invertedPageTable[ppn];
+	frame.process = process;
+	frame.entry = entry;
+
+	policy.frameLoaded(ppn);
+    }
+
+    /**
+     * Record that a shared page has been loaded into a frame. The VM lock
+     * must be held.
+     *
+     * @param	ppn	the frame.
+     * @param	page	the shared page.
+     */
+    static void mapSharedFrame(int ppn, SharedPage page) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	Frame frame = invertedPageTable[ppn];
+	frame.shared = page;
+	frame.entry = page.entry;
+
+	policy.frameLoaded(ppn);
+    }
+
+    /**
+     * Return the shared copy of a page of an executable, creating it if no
+     * process has it, and add a reference to it. The page is not loaded. The
+     * VM lock must be held.
+     *
+     * @param	coffName	the name of the executable.
+     * @param	vpn	the virtual page number of the page.
+     * @return	the shared page.
+     */
+    static SharedPage getSharedPage(String coffName, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	HashMap<Integer, SharedPage> coffPages = sharedPages.get(coffName);
+	if (coffPages == null) {
+	    coffPages = new HashMap<Integer, SharedPage>();
+	    sharedPages.put(coffName, coffPages);
+	}
+
+	SharedPage page = coffPages.get(vpn);
+	if (page == null) {
+	    page = new SharedPage(coffName, vpn);
+	    coffPages.put(vpn, page);
+	}
+
+	page.refCount++;
+	return page;
+    }
+
+    /**
+     * Drop a reference to a shared page. A page that is in memory stays
+     * cached when its last reference is dropped, until it is evicted, unless
+     * its executable has changed since it was loaded. The VM lock must be
+     * held.
+     *
+     * @param	page	the shared page.
+     */
+    static void releaseSharedPage(SharedPage page) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(page.refCount > 0);
+
+	page.refCount--;
+	if (page.refCount > 0)
+	    return;
+
+	if (page.stale)
+	    freeSharedFrame(page);
+	else if (!page.entry.valid)
+	    uncacheSharedPage(page);
+    }
+
+    /**
+     * Drop every cached page of an executable that is about to change, so
+     * that no process started after this loads the old contents. Pages no
+     * process is using are freed now; the others are freed when their last
+     * reference is dropped. The VM lock must be held.
+     *
+     * @param	coffName	the name of the executable.
+     */
+    static void invalidateSharedPages(String coffName) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	HashMap<Integer, SharedPage> coffPages = sharedPages.remove(coffName);
+	if (coffPages == null)
+	    return;
+
+	Lib.debug(dbgVM, "dropping the cached pages of " + coffName);
+
+	for (SharedPage page : coffPages.values()) {
+	    page.stale = true;
+	    if (page.refCount == 0)
+		freeSharedFrame(page);
+	}
+    }
+
+    /**
+     * Free the frame holding a shared page, if it is in memory.
+     */
+    private static void freeSharedFrame(SharedPage page) {
+	if (!page.entry.valid)
+	    return;
+
+	invertedPageTable[page.entry.ppn].shared = null;
+	page.entry.valid = false;
+	freeFrame(page.entry.ppn);
+    }
+
+    /**
+     * Remove a shared page from the cache, if it is still the cached copy.
+     */
+    private static void uncacheSharedPage(SharedPage page) {
+	if (page.stale)
+	    return;
+
+	HashMap<Integer, SharedPage> coffPages = sharedPages.get(page.coffName);
+	coffPages.remove(page.entry.vpn);
+	if (coffPages.isEmpty())
+	    sharedPages.remove(page.coffName);
+    }
+
+    /**
+     * Free a frame whose page is no longer needed. The VM lock must be held.
+     *
+     * @param	ppn	the frame to free.
+     */
+    static void freeFrame(int ppn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	Frame frame = invertedPageTable[ppn];
+	frame.process = null;
+	frame.entry = null;
+
+	invalidateTLB(ppn);
+	frameAllocator.free(ppn);
+    }
+
+    /**
+     * Keep a frame from being evicted, while the kernel is using it.
+     *
+     * @param	ppn	the frame to pin.
+     */
+    static void pinFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	invertedPageTable[ppn].pinCount++;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Undo one call to <tt>pinFrame()</tt>.
+     *
+     * @param	ppn	the frame to unpin.
+     */
+    static void unpinFrame(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(invertedPageTable[ppn].pinCount > 0);
+	invertedPageTable[ppn].pinCount--;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether the page in a frame may be evicted.
+     *
+     * @param	ppn	the frame.
+     * @return	<tt>true</tt> if the frame holds a page and is not pinned.
+     */
+    static boolean isEvictable(int ppn) {
+	Frame frame = invertedPageTable[ppn];
+	return frame.entry != null && frame.pinCount == 0;
+    }
+
+    /**
+     * Return the translation entry of the page in a frame.
+     *
+     * @param	ppn	the frame.
+     * @return	the page's translation entry, or <tt>null</tt> if the frame
+     *		holds no page.
+     */
+    static TranslationEntry getEntry(int ppn) {
+	return invertedPageTable[ppn].entry;
+    }
+
+    /**
+     * Choose the TLB entry to replace on a TLB miss. An invalid entry is
+     * always used first. Otherwise the <tt>random</tt> policy picks any entry,
+     * <tt>fifo</tt> replaces entries in the order they were filled, and
+     * <tt>nru</tt> replaces an entry that has not been used since the used
+     * bits were last cleared, preferring one that is also clean. The used
+     * bits are cleared, after being saved in the page table, once every entry
+     * has been used.
+     *
+     * @return	the index of the TLB entry to replace.
+     */
+    static int chooseTLBEntry() {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	for (int i=0; i<tlbSize; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		return i;
+	}
+
+	int victim;
+
+	switch (tlbPolicy) {
+	case tlbFIFO:
+	    victim = tlbHand;
+	    tlbHand = (tlbHand+1) % tlbSize;
+	    break;
+
+	case tlbNRU:
+	    victim = -1;
+	    int bestClass = 4;
+	    for (int j=0; j<tlbSize && bestClass > 0; j++) {
+		int i = (tlbHand+j) % tlbSize;
+		TranslationEntry entry = processor.readTLBEntry(i);
+		int entryClass = (entry.used ? 2 : 0) + (entry.dirty ? 1 : 0);
+		if (entryClass < bestClass) {
+		    victim = i;
+		    bestClass = entryClass;
+		}
+	    }
+
+	    tlbHand = (victim+1) % tlbSize;
+
+	    // every entry has been used, so start a new period
+	    if (bestClass >= 2)
+		syncTLB(false);
+	    break;
+
+	default:
+	    victim = Lib.random(tlbSize);
+	    break;
+	}
+
+	return victim;
+    }
+
+    /**
+     * Copy the used and dirty bits of every entry in the TLB into the page
+     * table. The used bits in the TLB are then cleared, so that a used bit
+     * the replacement policy clears stays clear until the page is used
+     * again.
+     *
+     * @param	invalidate	<tt>true</tt> to also invalidate every TLB
+     *				entry.
+     */
+    static void syncTLB(boolean invalidate) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!tlbEntry.valid)
+		continue;
+
+	    saveTLBEntry(tlbEntry);
+
+	    if (invalidate || tlbEntry.used) {
+		tlbEntry.used = false;
+		tlbEntry.valid = !invalidate;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	// an empty TLB is refilled from the first entry on
+	if (invalidate)
+	    tlbHand = 0;
+    }
+
+    /**
+     * Remove any TLB entry for a frame, copying its used and dirty bits into
+     * the page table first.
+     *
+     * @param	ppn	the frame.
+     */
+    static void invalidateTLB(int ppn) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!tlbEntry.valid || tlbEntry.ppn != ppn)
+		continue;
+
+	    saveTLBEntry(tlbEntry);
+
+	    tlbEntry.valid = false;
+	    processor.writeTLBEntry(i, tlbEntry);
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits of a valid TLB entry into the page table
+     * entry it was loaded from, before the TLB entry is replaced.
+     *
+     * @param	tlbEntry	the contents of the TLB entry.
+     */
+    static void saveTLBEntry(TranslationEntry tlbEntry) {
+	TranslationEntry entry = invertedPageTable[tlbEntry.ppn].entry;
+	if (entry != null && entry.vpn == tlbEntry.vpn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    /**
+     * A page of a COFF section that is shared by the processes running the
+     * same executable. Every process maps the page with the same translation
+     * entry, so evicting the page unmaps it from all of them at once.
+     */
+    static class SharedPage {
+	SharedPage(String coffName, int vpn) {
+	    this.coffName = coffName;
+	    entry = new TranslationEntry(vpn, -1, false, true, false, false);
+	}
+
+	/** The name of the executable the page belongs to. */
+	final String coffName;
+	/** The read-only translation entry used by every process. */
+	final TranslationEntry entry;
+	/** The number of processes mapping the page. */
+	int refCount = 0;
+	/** Set once the executable has changed and the page is not cached. */
+	boolean stale = false;
+    }
+
+    /** A frame of physical memory, and the page loaded into it. */
+    private static class Frame {
+	/** The process that owns the page, or <tt>null</tt> if it is shared. */
+	VMProcess process = null;
+	/** The shared page loaded in the frame, if it is shared. */
+	SharedPage shared = null;
+	/** The translation entry of the page. */
+	TranslationEntry entry = null;
+	/** The number of kernel accesses in progress on the frame. */
+	int pinCount = 0;
+    }
+
+    /** Protects the inverted page table and every process's pages. */
+    static Lock vmLock;
+    /** The swap area. */
+    static SwapFile swap;
+
+    /** The number of pages faulted in from swap, zeros, or executables. */
+    static int numPageFaults = 0;
+
+    /** The most pages to evict at once when the victims are dirty. */
+    static int swapBatchSize;
+    /** The most pages to read from swap ahead of a faulting page. */
+    static int swapReadAhead;
+
+    private static final int tlbRandom = 0, tlbFIFO = 1, tlbNRU = 2;
+    /** The TLB replacement policy. */
+    private static int tlbPolicy = tlbRandom;
+    /** The next TLB entry to consider replacing. */
+    private static int tlbHand = 0;
+
+    private static Frame[] invertedPageTable;
+    /** The shared COFF pages that are in use or in memory, by executable
+     *  and vpn. */
+    private static HashMap<String, HashMap<Integer, SharedPage>> sharedPages =
+	new HashMap<String, HashMap<Integer, SharedPage>>();
+    private static ReplacementPolicy policy;
+
+    /** The frames, owners, and entries of the pages being evicted. */
+    private static int[] victimFrames;
+    private static VMProcess[] victimProcesses;
+    private static TranslationEntry[] victimEntries;
+    /** The victims to write back, in the order they are written. */
+    private static int[] order;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.Arrays;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -7,6 +9,21 @@ import nachos.vm.*;
 
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No pages are loaded when the process starts. The first time a page is
+ * touched, either by the program through a TLB miss or by the kernel through
+ * <tt>readVirtualMemory()</tt> or <tt>writeVirtualMemory()</tt>, a frame is
+ * allocated for it and filled from the executable, or with zeros for the
+ * stack and argument pages. When memory is full, <tt>VMKernel</tt> evicts a
+ * page to make room; dirty pages are written to swap, and read back from
+ * there the next time they are touched.
+ *
+ * <p>
+ * Pages of COFF sections are shared with every other process running the
+ * same executable (see <tt>VMKernel.SharedPage</tt>). A shared page of a
+ * writable section is copied the first time this process writes to it,
+ * either from a read-only exception or from a kernel write.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -18,18 +35,23 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The used and dirty bits of the
+     * TLB entries are copied back into the page table, and the TLB is
+     * invalidated, since the next process must not use this process's
+     * translations.
      */
     public void saveState() {
 	super.saveState();
+
+	VMKernel.syncTLB(true);
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The processor has no page table to
+     * load, since it uses the TLB, which is refilled on demand.
      */
     public void restoreState() {
-	super.restoreState();
     }
 
     /**
@@ -39,15 +61,395 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	// every page starts out unmapped, and is loaded on first touch
+	pageTable = null;
+	pages = new TwoLevelPageTable();
+
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+	sharedPages = new VMKernel.SharedPage[numPages];
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.vmLock.acquire();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pages.remove(vpn);
+	    if (sharedPages[vpn] != null) {
+		VMKernel.releaseSharedPage(sharedPages[vpn]);
+		sharedPages[vpn] = null;
+	    }
+	    else if (entry != null && entry.valid) {
+		VMKernel.freeFrame(entry.ppn);
+	    }
+
+	    setSwapSlot(vpn, -1);
+	}
+
+	VMKernel.vmLock.release();
+
+	coff.close();
+    }
+
+    /**
+     * Return the page table entry for the specified virtual page, loading the
+     * page first if it is not in memory. The page is pinned in memory until
+     * <tt>releasePage()</tt> is called.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	write	<tt>true</tt> if the kernel will write to the page.
+     * @return	the page table entry, or <tt>null</tt> if the page is not part
+     *		of this process or could not be loaded.
+     */
+    protected TranslationEntry lookupPage(int vpn, boolean write) {
+	if (vpn < 0 || vpn >= numPages)
+	    return null;
+
+	VMKernel.vmLock.acquire();
+
+	TranslationEntry entry = pages.get(vpn);
+	if (entry == null || !entry.valid)
+	    entry = pageIn(vpn);
+
+	if (entry != null && write && isCopyOnWrite(vpn))
+	    entry = copyOnWrite(vpn);
+
+	if (entry != null)
+	    VMKernel.pinFrame(entry.ppn);
+
+	VMKernel.vmLock.release();
+
+	return entry;
+    }
+
+    /**
+     * Unpin a page pinned by <tt>lookupPage()</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    protected void releasePage(int vpn) {
+	VMKernel.unpinFrame(pages.get(vpn).ppn);
+    }
+
+    /**
+     * Drop the cached pages of an executable that has changed.
+     *
+     * @param	name	the name of the file.
+     */
+    protected void fileChanged(String name) {
+	VMKernel.vmLock.acquire();
+	VMKernel.invalidateSharedPages(name);
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Load the specified virtual page into a frame. A page that was written
+     * to swap is read back from there; otherwise pages that belong to a COFF
+     * section are read from the executable, and the stack and argument pages
+     * are zero-filled. The VM lock must be held.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	the page table entry, or <tt>null</tt> if no frame could be
+     *		found for the page.
+     */
+    private TranslationEntry pageIn(int vpn) {
+	CoffSection section = findSection(vpn);
+	if (section != null && swapSlots[vpn] == -1)
+	    return pageInShared(vpn, section);
+
+	int ppn = VMKernel.allocateFrame();
+	if (ppn == -1)
+	    return null;
+
+	VMKernel.numPageFaults++;
+
+	if (swapSlots[vpn] != -1) {
+	    swapIn(vpn, ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tzero-filling page " + vpn);
+
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    Machine.processor().invalidatePage(ppn);
+	}
+
+	return mapPage(vpn, ppn, false);
+    }
+
+    /**
+     * Map the shared copy of a page of a COFF section, loading it from the
+     * executable if no process has it in memory. The VM lock must be held.
+     *
+     * @param	vpn	the virtual page to map.
+     * @param	section	the section containing the page.
+     * @return	the shared page's translation entry, or <tt>null</tt> if no
+     *		frame could be found for the page.
+     */
+    private TranslationEntry pageInShared(int vpn, CoffSection section) {
+	VMKernel.SharedPage page = sharedPages[vpn];
+	if (page == null) {
+	    page = VMKernel.getSharedPage(coffName, vpn);
+	    sharedPages[vpn] = page;
+	    pages.put(page.entry);
+	}
+
+	if (page.entry.valid) {
+	    Lib.debug(dbgVM, "\tsharing page " + vpn + " in frame "
+		      + page.entry.ppn);
+	    return page.entry;
+	}
+
+	int ppn = VMKernel.allocateFrame();
+	if (ppn == -1)
+	    return null;
+
+	VMKernel.numPageFaults++;
+
+	Lib.debug(dbgVM, "\tloading page " + vpn + " from "
+		  + section.getName() + " section");
+
+	section.loadPage(vpn - section.getFirstVPN(), ppn);
+
+	page.entry.ppn = ppn;
+	page.entry.valid = true;
+	page.entry.used = false;
+	page.entry.dirty = false;
+
+	VMKernel.mapSharedFrame(ppn, page);
+
+	return page.entry;
+    }
+
+    /**
+     * Test whether a page is a shared page of a writable section, which must
+     * be copied before this process writes to it.
+     */
+    private boolean isCopyOnWrite(int vpn) {
+	return sharedPages[vpn] != null && !findSection(vpn).isReadOnly();
+    }
+
+    /**
+     * Give this process its own copy of a shared page of a writable section,
+     * and drop its reference to the shared page. The VM lock must be held.
+     *
+     * @param	vpn	the virtual page to copy.
+     * @return	the new, writable translation entry, or <tt>null</tt> if no
+     *		frame could be found for the copy.
+     */
+    private TranslationEntry copyOnWrite(int vpn) {
+	VMKernel.SharedPage page = sharedPages[vpn];
+
+	// keep the original in memory while looking for a frame for the copy
+	boolean resident = page.entry.valid;
+	if (resident)
+	    VMKernel.pinFrame(page.entry.ppn);
+
+	int ppn = VMKernel.allocateFrame();
+
+	if (resident)
+	    VMKernel.unpinFrame(page.entry.ppn);
+
+	if (ppn == -1)
+	    return null;
+
+	Lib.debug(dbgVM, "\tcopying page " + vpn + " on write");
+
+	if (resident) {
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, page.entry.ppn*pageSize,
+			     memory, ppn*pageSize, pageSize);
+	    Machine.processor().invalidatePage(ppn);
+
+	    // the TLB may still map this page to the shared frame
+	    VMKernel.invalidateTLB(page.entry.ppn);
+	}
+	else {
+	    CoffSection section = findSection(vpn);
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+
+	sharedPages[vpn] = null;
+	VMKernel.releaseSharedPage(page);
+	pages.remove(vpn);
+
+	TranslationEntry entry = mapPage(vpn, ppn, false);
+	entry.dirty = true;
+
+	return entry;
+    }
+
+    /**
+     * Handle a read-only exception. A write to a shared page of a writable
+     * section gets this process its own copy of the page.
+     *
+     * @param	vaddr	the virtual address that was written.
+     * @return	<tt>true</tt> if the write can be retried.
+     */
+    private boolean handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn < 0 || vpn >= numPages)
+	    return false;
+
+	VMKernel.vmLock.acquire();
+
+	// anything else is a write to a read-only section
+	boolean handled = isCopyOnWrite(vpn) && copyOnWrite(vpn) != null;
+
+	VMKernel.vmLock.release();
+
+	return handled;
+    }
+
+    /**
+     * Record which swap slot holds a page, freeing the slot that held it
+     * before. A clean page that is evicted keeps its slot, since it can be
+     * read back from there, or else from the executable or as zeros. The VM
+     * lock must be held.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	slot	the swap slot, or -1 if the page is not in swap.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	if (swapSlots[vpn] != -1)
+	    VMKernel.swap.free(swapSlots[vpn]);
+
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Read a page from swap, along with as many of the following pages as
+     * sit in the following slots and are not in memory, up to
+     * <tt>VMKernel.swapReadAhead</tt> pages and as long as there are free
+     * frames for them. The extra pages are mapped as not yet used, so they
+     * are the first to go if the guess was wrong. The VM lock must be held.
+     *
+     * @param	vpn	the virtual page to read.
+     * @param	ppn	the frame to read it into.
+     */
+    private void swapIn(int vpn, int ppn) {
+	int slot = swapSlots[vpn];
+
+	int[] ppns = new int[1 + VMKernel.swapReadAhead];
+	ppns[0] = ppn;
+
+	int count = 1;
+	while (count < ppns.length && vpn+count < numPages &&
+	       swapSlots[vpn+count] == slot+count && !isResident(vpn+count)) {
+	    int extra = UserKernel.frameAllocator.allocate();
+	    if (extra == -1)
+		break;
+
+	    ppns[count++] = extra;
+	}
+
+	VMKernel.swap.read(slot, ppns, count);
+
+	for (int i=1; i<count; i++) {
+	    Lib.debug(dbgVM, "\treading ahead page " + (vpn+i));
+	    mapPage(vpn+i, ppns[i], false);
+	}
+    }
+
+    private boolean isResident(int vpn) {
+	TranslationEntry entry = pages.get(vpn);
+	return entry != null && entry.valid;
+    }
+
+    /**
+     * Map a virtual page to a frame that its contents were just loaded into.
+     * The VM lock must be held.
+     */
+    private TranslationEntry mapPage(int vpn, int ppn, boolean readOnly) {
+	TranslationEntry entry = pages.get(vpn);
+	if (entry == null) {
+	    entry = new TranslationEntry(vpn, ppn, true, false, false, false);
+	    pages.put(entry);
+	}
+
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.readOnly = readOnly;
+	entry.used = false;
+	entry.dirty = false;
+
+	VMKernel.mapFrame(ppn, this, entry);
+
+	return entry;
+    }
+
+    /**
+     * Return the COFF section containing the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the section, or <tt>null</tt> if the page is a stack or
+     *		argument page.
+     */
+    private CoffSection findSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /**
+     * Handle a TLB miss by loading the page if necessary, and then copying
+     * its translation into the TLB entry chosen by
+     * <tt>VMKernel.chooseTLBEntry()</tt>. The used and dirty bits of the entry
+     * it replaces are saved in the page table first.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the page is now in the TLB.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	// Most misses are for pages that are in memory, and with interrupts
+	// disabled no other thread can evict one, so those skip the VM lock.
+	// Otherwise every thread woken by the lock would get one entry into
+	// the TLB, miss again, and queue behind the others, and the TLB is
+	// flushed on every switch.
+	boolean intStatus = Machine.interrupt().disable();
+
+	TranslationEntry entry = pages.get(vpn);
+	boolean resident = (entry != null && entry.valid);
+	if (resident)
+	    loadTLBEntry(entry);
+
+	Machine.interrupt().restore(intStatus);
+
+	if (resident)
+	    return true;
+
+	entry = lookupPage(vpn, false);
+	if (entry == null)
+	    return false;
+
+	loadTLBEntry(entry);
+	releasePage(vpn);
+
+	return true;
+    }
+
+    private void loadTLBEntry(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+
+	int victim = VMKernel.chooseTLBEntry();
+	TranslationEntry replaced = processor.readTLBEntry(victim);
+	if (replaced.valid)
+	    VMKernel.saveTLBEntry(replaced);
+
+	processor.writeTLBEntry(victim, entry);
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +463,29 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    if (!handleReadOnly(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** The translations for the pages of this process that were touched. */
+    protected TwoLevelPageTable pages;
+    /** The swap slot holding each page, or -1 if it was never swapped. */
+    private int[] swapSlots;
+    /** The shared page mapped at each page, or <tt>null</tt> if private. */
+    private VMKernel.SharedPage[] sharedPages;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';